@@ -11,6 +11,14 @@ package org.concord.energy2d.math;
  */
 public class MathUtil {
 
+	/** the solvers set anything closer to zero than this to zero, since arithmetic on subnormal floats is many times slower */
+	public final static float TINY = 1e-20f;
+
+	/** @return zero if x is closer to zero than TINY, otherwise x. */
+	public final static float flushTiny(float x) {
+		return x < TINY && x > -TINY ? 0 : x;
+	}
+
 	/** @return true if x is between a and b. */
 	public final static boolean between(float a, float b, float x) {
 		return x < Math.max(a, b) && x > Math.min(a, b);
@@ -57,13 +65,14 @@ public class MathUtil {
 	}
 
 	public static float getAverage(float[][] array) {
-		float ave = 0;
+		// summed in double, because a float sum of many cells rounds away the last digits of each
+		double ave = 0;
 		for (float[] a : array) {
 			for (float x : a) {
 				ave += x;
 			}
 		}
-		return ave / (array.length * array[0].length);
+		return (float) (ave / (array.length * array[0].length));
 	}
 
 }
@@ -0,0 +1,270 @@
+/*
+ *   Copyright (C) 2010  The Concord Consortium, Inc.,
+ *   25 Love Lane, Concord, MA 01742
+ *
+ */
+
+package org.concord.energy2d.math;
+
+import java.awt.Shape;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Finds the spans of the points of a grid that lie inside a shape, row by row, agreeing with Shape.contains(x, y) on the edges.
+ */
+public class ShapeRasterizer {
+
+	/** receives the spans of the points that are inside a shape, row by row in ascending order */
+	public interface Span {
+
+		/** the points of row j in columns [from, to) are inside */
+		void add(int j, int from, int to);
+
+	}
+
+	private ShapeRasterizer() {
+	}
+
+	/** hand each row of the grid of points (x[i], y[j]) the spans of columns whose points are inside the shape */
+	public static void rasterize(Shape shape, float[] x, float[] y, Span span) {
+		if (shape instanceof Rectangle2D) {
+			Rectangle2D r = (Rectangle2D) shape;
+			rectangle(r.getX(), r.getY(), r.getWidth(), r.getHeight(), x, y, span);
+		} else if (shape instanceof Ellipse2D) {
+			Ellipse2D e = (Ellipse2D) shape;
+			ring(e.getX(), e.getY(), e.getWidth(), e.getHeight(), 0, 0, 0, 0, x, y, span);
+		} else if (shape instanceof Ring2D) {
+			// the fields of Ring2D keep the ring it was made as, but its area may have been moved since, which its bounds follow
+			Ring2D r = (Ring2D) shape;
+			Rectangle2D b = r.getBounds2D();
+			double iw = r.getInnerDiameter() * b.getWidth() / r.getOuterDiameter();
+			double ih = r.getInnerDiameter() * b.getHeight() / r.getOuterDiameter();
+			ring(b.getX(), b.getY(), b.getWidth(), b.getHeight(), b.getCenterX() - 0.5 * iw, b.getCenterY() - 0.5 * ih, iw, ih, x, y, span);
+		} else if (shape instanceof Polygon2D) {
+			polygon((Polygon2D) shape, x, y, span);
+		} else {
+			points(shape, x, y, span);
+		}
+	}
+
+	// the index of the first coordinate that is not smaller than v, or the length of the array if there is none
+	private static int lowerBound(float[] a, double v) {
+		int low = 0, high = a.length;
+		int mid;
+		while (low < high) {
+			mid = (low + high) >>> 1;
+			if (a[mid] < v)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	// Rectangle2D.contains: x0 <= x < x0 + w and y0 <= y < y0 + h
+	private static void rectangle(double x0, double y0, double w, double h, float[] x, float[] y, Span span) {
+		int from = lowerBound(x, x0);
+		int to = lowerBound(x, x0 + w);
+		if (from >= to)
+			return;
+		int end = lowerBound(y, y0 + h);
+		for (int j = lowerBound(y, y0); j < end; j++)
+			span.add(j, from, to);
+	}
+
+	// the points inside the outer ellipse and not inside the inner one, which has zero width if there is none
+	private static void ring(double ox, double oy, double ow, double oh, double ix, double iy, double iw, double ih, float[] x, float[] y, Span span) {
+		if (ow <= 0 || oh <= 0)
+			return;
+		int n = x.length;
+		boolean hollow = iw > 0 && ih > 0;
+		// a row can only cross the ellipse if its point is within the height of it, and one more on each side covers the rounding
+		int end = Math.min(y.length, lowerBound(y, oy + oh) + 1);
+		double normy, innery;
+		int a0, a1, b0, b1;
+		for (int j = Math.max(0, lowerBound(y, oy) - 1); j < end; j++) {
+			normy = (y[j] - oy) / oh - 0.5;
+			if (normy * normy >= 0.25)
+				continue;
+			a0 = lowerBound(x, ox + ow * (0.5 - Math.sqrt(0.25 - normy * normy)));
+			a1 = lowerBound(x, ox + ow * (0.5 + Math.sqrt(0.25 - normy * normy)));
+			// move the ends of the span until they agree with the test of the ellipse, which is convex along the row
+			while (a0 > 0 && inside(x[a0 - 1], ox, ow, normy))
+				a0--;
+			while (a0 < a1 && !inside(x[a0], ox, ow, normy))
+				a0++;
+			while (a1 < n && inside(x[a1], ox, ow, normy))
+				a1++;
+			while (a1 > a0 && !inside(x[a1 - 1], ox, ow, normy))
+				a1--;
+			if (a0 == a1)
+				continue;
+			innery = hollow ? (y[j] - iy) / ih - 0.5 : 1;
+			if (innery * innery >= 0.25) {
+				span.add(j, a0, a1);
+				continue;
+			}
+			b0 = lowerBound(x, ix + iw * (0.5 - Math.sqrt(0.25 - innery * innery)));
+			b1 = lowerBound(x, ix + iw * (0.5 + Math.sqrt(0.25 - innery * innery)));
+			while (b0 > 0 && inside(x[b0 - 1], ix, iw, innery))
+				b0--;
+			while (b0 < b1 && !inside(x[b0], ix, iw, innery))
+				b0++;
+			while (b1 < n && inside(x[b1], ix, iw, innery))
+				b1++;
+			while (b1 > b0 && !inside(x[b1 - 1], ix, iw, innery))
+				b1--;
+			if (b0 == b1) {
+				span.add(j, a0, a1);
+				continue;
+			}
+			// the hole splits the span of the outer ellipse
+			if (a0 < Math.min(b0, a1))
+				span.add(j, a0, Math.min(b0, a1));
+			if (Math.max(b1, a0) < a1)
+				span.add(j, Math.max(b1, a0), a1);
+		}
+	}
+
+	// Ellipse2D.contains for a point in a row at the given normalized distance from the center of the ellipse
+	private static boolean inside(double x, double ex, double ew, double normy) {
+		double normx = (x - ex) / ew - 0.5;
+		return (normx * normx + normy * normy) < 0.25;
+	}
+
+	// scan the edges with the nonzero winding rule, each crossing counted at the intercept clamped to the edge as Path2D counts it
+	private static void polygon(Polygon2D polygon, float[] x, float[] y, Span span) {
+
+		int n = polygon.getVertexCount();
+		double[] ex0 = new double[n], ey0 = new double[n], ex1 = new double[n], ey1 = new double[n];
+		int m = 0;
+		double ymin = Double.MAX_VALUE, ymax = -Double.MAX_VALUE;
+		for (int k = 0; k < n; k++) {
+			float a0 = polygon.getVertex(k).x, b0 = polygon.getVertex(k).y;
+			float a1 = polygon.getVertex((k + 1) % n).x, b1 = polygon.getVertex((k + 1) % n).y;
+			if (b0 == b1) // a horizontal edge crosses no row
+				continue;
+			ex0[m] = a0;
+			ey0[m] = b0;
+			ex1[m] = a1;
+			ey1[m] = b1;
+			ymin = Math.min(ymin, Math.min(b0, b1));
+			ymax = Math.max(ymax, Math.max(b0, b1));
+			m++;
+		}
+		if (m == 0)
+			return;
+
+		// the edge table: the edges in the order in which the rows reach them
+		Integer[] order = new Integer[m];
+		for (int k = 0; k < m; k++)
+			order[k] = k;
+		final double[] low = new double[m];
+		for (int k = 0; k < m; k++)
+			low[k] = Math.min(ey0[k], ey1[k]);
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(low[a], low[b]);
+			}
+		});
+
+		int[] active = new int[m];
+		double[] cross = new double[m];
+		int[] direction = new int[m];
+		int count = 0, next = 0, e, d, total, winding, from;
+		double py, c, t;
+		int end = lowerBound(y, ymax);
+		for (int j = lowerBound(y, ymin); j < end; j++) {
+			py = y[j];
+			// the edges that start at or above the row join, and those that end at or above it leave
+			while (next < m && low[order[next]] <= py)
+				active[count++] = order[next++];
+			for (int k = 0; k < count;) {
+				e = active[k];
+				if (Math.max(ey0[e], ey1[e]) <= py)
+					active[k] = active[--count];
+				else
+					k++;
+			}
+			if (count == 0)
+				continue;
+			// the positions at which the winding number changes, sorted by insertion as there are few of them
+			total = 0;
+			for (int k = 0; k < count; k++) {
+				e = active[k];
+				c = ex0[e] + (py - ey0[e]) * (ex1[e] - ex0[e]) / (ey1[e] - ey0[e]);
+				c = Math.max(Math.min(ex0[e], ex1[e]), Math.min(Math.max(ex0[e], ex1[e]), c));
+				d = ey0[e] < ey1[e] ? 1 : -1;
+				total += d;
+				int l = k;
+				while (l > 0 && cross[l - 1] > c) {
+					cross[l] = cross[l - 1];
+					direction[l] = direction[l - 1];
+					l--;
+				}
+				cross[l] = c;
+				direction[l] = d;
+			}
+			// left of all the crossings, every edge is to the right; between crossings k and k + 1, the edges after k are
+			winding = total;
+			from = winding != 0 ? 0 : -1;
+			for (int k = 0; k < count; k++) {
+				t = cross[k];
+				winding -= direction[k];
+				if (winding != 0 && from < 0) {
+					from = lowerBound(x, t);
+				} else if (winding == 0 && from >= 0) {
+					int to = lowerBound(x, t);
+					if (from < to)
+						span.add(j, from, to);
+					from = -1;
+				}
+			}
+			if (from >= 0 && from < x.length)
+				span.add(j, from, x.length);
+		}
+
+	}
+
+	// test each point within the bounding box of the points of the outline, which contain the curves between them
+	private static void points(Shape shape, float[] x, float[] y, Span span) {
+		double xmin = Double.MAX_VALUE, ymin = Double.MAX_VALUE, xmax = -Double.MAX_VALUE, ymax = -Double.MAX_VALUE;
+		double[] coords = new double[6];
+		int type, points;
+		for (PathIterator it = shape.getPathIterator(null); !it.isDone(); it.next()) {
+			type = it.currentSegment(coords);
+			points = type == PathIterator.SEG_CUBICTO ? 3 : type == PathIterator.SEG_QUADTO ? 2 : type == PathIterator.SEG_CLOSE ? 0 : 1;
+			for (int k = 0; k < points; k++) {
+				xmin = Math.min(xmin, coords[2 * k]);
+				xmax = Math.max(xmax, coords[2 * k]);
+				ymin = Math.min(ymin, coords[2 * k + 1]);
+				ymax = Math.max(ymax, coords[2 * k + 1]);
+			}
+		}
+		if (xmin > xmax)
+			return;
+		int i0 = lowerBound(x, xmin);
+		int i1 = Math.min(x.length, lowerBound(x, xmax) + 1);
+		int j1 = Math.min(y.length, lowerBound(y, ymax) + 1);
+		int from;
+		for (int j = lowerBound(y, ymin); j < j1; j++) {
+			from = -1;
+			for (int i = i0; i < i1; i++) {
+				if (shape.contains(x[i], y[j])) {
+					if (from < 0)
+						from = i;
+				} else if (from >= 0) {
+					span.add(j, from, i);
+					from = -1;
+				}
+			}
+			if (from >= 0)
+				span.add(j, from, i1);
+		}
+	}
+
+}
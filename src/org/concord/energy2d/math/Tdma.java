@@ -37,7 +37,13 @@ public class Tdma {
 	 *            the result vector
 	 */
 	public static void solve(float[] a, float[] b, float[] c, float[] d, float[] x) {
-		int n = a.length;
+		solve(a, b, c, d, x, a.length);
+	}
+
+	/**
+	 * Solve the first n equations. This allows the same work arrays to be reused for systems of different sizes. The input arrays must have at least n elements.
+	 */
+	public static void solve(float[] a, float[] b, float[] c, float[] d, float[] x, int n) {
 		float temp;
 		c[0] /= b[0];
 		d[0] /= b[0];
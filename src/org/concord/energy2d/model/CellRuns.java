@@ -0,0 +1,61 @@
+/*
+ *   Copyright (C) 2009  The Concord Consortium, Inc.,
+ *   25 Love Lane, Concord, MA 01742
+ */
+
+package org.concord.energy2d.model;
+
+/**
+ * A run-length encoded mask of the interior cells of a grid: the runs of column i are pairs of a first row and an end row (exclusive) in runs[i][0 .. length[i]).
+ */
+class CellRuns {
+
+	int[][] runs;
+	int[] length;
+	private int nx, ny;
+
+	CellRuns(int nx, int ny) {
+		this.nx = nx;
+		this.ny = ny;
+		// the interior of a column has at most (ny - 1) / 2 runs
+		runs = new int[nx][ny];
+		length = new int[nx];
+	}
+
+	/** the interior cells whose mask value equals the given value */
+	void set(boolean[][] mask, boolean value) {
+		for (int i = 1; i < nx - 1; i++) {
+			boolean[] m = mask[i];
+			int[] r = runs[i];
+			int n = 0;
+			for (int j = 1; j < ny - 1; j++) {
+				if (m[j] == value) {
+					r[n++] = j;
+					while (j < ny - 1 && m[j] == value)
+						j++;
+					r[n++] = j;
+				}
+			}
+			length[i] = n;
+		}
+	}
+
+	/** the interior cells whose value is NaN, or whose value is not NaN if nan is false */
+	void setNaN(float[][] a, boolean nan) {
+		for (int i = 1; i < nx - 1; i++) {
+			float[] x = a[i];
+			int[] r = runs[i];
+			int n = 0;
+			for (int j = 1; j < ny - 1; j++) {
+				if (Float.isNaN(x[j]) == nan) {
+					r[n++] = j;
+					while (j < ny - 1 && Float.isNaN(x[j]) == nan)
+						j++;
+					r[n++] = j;
+				}
+			}
+			length[i] = n;
+		}
+	}
+
+}
@@ -0,0 +1,64 @@
+/*
+ *   Copyright (C) 2009  The Concord Consortium, Inc.,
+ *   25 Love Lane, Concord, MA 01742
+ */
+
+package org.concord.energy2d.model;
+
+/**
+ * Decides how many relaxation steps an iterative solver takes, from the largest change that each step makes to the field. A policy cannot be changed, so it can be shared.
+ */
+public class ConvergencePolicy {
+
+	public final static ConvergencePolicy DEFAULT = new ConvergencePolicy(0, 5, 5);
+
+	// the V-cycles of the stream function start from its last solution, so they usually converge in one or two
+	public final static ConvergencePolicy STREAM_FUNCTION = new ConvergencePolicy(0.001f, 1, 20);
+
+	private final float tolerance;
+	private final int minSteps, maxSteps;
+
+	public ConvergencePolicy(float tolerance, int minSteps, int maxSteps) {
+		if (tolerance < 0)
+			throw new IllegalArgumentException("tolerance cannot be negative");
+		if (minSteps < 1 || maxSteps < minSteps)
+			throw new IllegalArgumentException("steps must satisfy 1 <= min <= max");
+		this.tolerance = tolerance;
+		this.minSteps = minSteps;
+		this.maxSteps = maxSteps;
+	}
+
+	public float getTolerance() {
+		return tolerance;
+	}
+
+	public int getMinSteps() {
+		return minSteps;
+	}
+
+	public int getMaxSteps() {
+		return maxSteps;
+	}
+
+	public boolean equals(Object o) {
+		if (!(o instanceof ConvergencePolicy))
+			return false;
+		ConvergencePolicy c = (ConvergencePolicy) o;
+		return c.tolerance == tolerance && c.minSteps == minSteps && c.maxSteps == maxSteps;
+	}
+
+	public int hashCode() {
+		return Float.floatToIntBits(tolerance) ^ minSteps << 16 ^ maxSteps;
+	}
+
+	/** whether the change made by the given step (counting from one) decides anything, so that the solver has to measure it */
+	boolean isMeasured(int step) {
+		return tolerance > 0 && step >= minSteps && step < maxSteps;
+	}
+
+	/** whether the relaxation stops after the given step, which made a largest change of the given size if it was measured */
+	boolean isDone(int step, float change) {
+		return step >= maxSteps || isMeasured(step) && change <= tolerance;
+	}
+
+}
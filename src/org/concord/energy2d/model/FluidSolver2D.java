@@ -9,7 +9,6 @@ package org.concord.energy2d.model;
 import java.util.Arrays;
 
 import org.concord.energy2d.math.MathUtil;
-import org.concord.energy2d.util.MiscUtil;
 
 /**
  * @author Charles Xie
@@ -17,9 +16,6 @@ import org.concord.energy2d.util.MiscUtil;
  */
 abstract class FluidSolver2D {
 
-	// five relaxation steps are probably enough for most transient problems because there are numerous previous steps that can be considered as pre-relaxation steps, especially when changes are slow or small.
-	static byte relaxationSteps = 5;
-
 	private float thermalBuoyancy = 0.00025f;
 	private float gravity = 0;
 	private byte buoyancyApproximation = Model2D.BUOYANCY_AVERAGE_ALL;
@@ -29,14 +25,27 @@ abstract class FluidSolver2D {
 	int nx, ny, nx1, ny1, nx2, ny2;
 	float[][] u0, v0;
 	float timeStep = .1f;
+	byte advectionScheme = Model2D.ADVECTION_MACCORMACK;
 	float deltaX, deltaY;
 	boolean[][] fluidity;
 	MassBoundary boundary;
 	float[][] t;
 	float[][] uWind, vWind;
+	// the negative vorticity and the fluidity at the end of the last step, from which the stream function is calculated under streamLock without holding up the steps
 	private float[][] vorticity, stream;
-
-	private float i2dx, i2dy;
+	private boolean[][] streamFluidity;
+	private CellRuns streamSolidCells;
+	private boolean fluidityChanged;
+	private final Object streamLock = new Object();
+	private PoissonMultigrid2D multigrid, streamMultigrid;
+	private float projectionTolerance;
+	ConvergencePolicy viscousConvergence = ConvergencePolicy.DEFAULT;
+	ConvergencePolicy projectionConvergence = ConvergencePolicy.DEFAULT;
+	private ConvergencePolicy streamConvergence = ConvergencePolicy.STREAM_FUNCTION;
+	CellRuns fluidCells, solidCells;
+	private volatile boolean masksValid, streamValid;
+
+	float i2dx, i2dy;
 	float idxsq, idysq;
 
 	FluidSolver2D(int nx, int ny) {
@@ -56,15 +65,18 @@ abstract class FluidSolver2D {
 			Arrays.fill(u0[i], 0);
 			Arrays.fill(v0[i], 0);
 		}
-		if (vorticity != null) {
-			for (int i = 0; i < nx; i++) {
-				Arrays.fill(vorticity[i], 0);
+		synchronized (streamLock) {
+			if (vorticity != null) {
+				for (int i = 0; i < nx; i++) {
+					Arrays.fill(vorticity[i], 0);
+				}
 			}
-		}
-		if (stream != null) {
-			for (int i = 0; i < nx; i++) {
-				Arrays.fill(stream[i], 0);
+			if (stream != null) {
+				for (int i = 0; i < nx; i++) {
+					Arrays.fill(stream[i], 0);
+				}
 			}
+			streamValid = false;
 		}
 	}
 
@@ -111,6 +123,31 @@ abstract class FluidSolver2D {
 
 	void setFluidity(boolean[][] fluidity) {
 		this.fluidity = fluidity;
+		masksValid = false;
+	}
+
+	/** called when the fluidity array has been changed in place */
+	void invalidateMasks() {
+		masksValid = false;
+	}
+
+	/** called by the thread that has changed the velocity other than by a step, while no step is running */
+	void velocityChanged(float[][] u, float[][] v) {
+		takeVorticity(u, v);
+	}
+
+	// rebuild the runs of fluid and solid cells if the fluidity has changed
+	private void updateMasks() {
+		if (masksValid)
+			return;
+		masksValid = true;
+		if (fluidCells == null) {
+			fluidCells = new CellRuns(nx, ny);
+			solidCells = new CellRuns(nx, ny);
+		}
+		fluidCells.set(fluidity, true);
+		solidCells.set(fluidity, false);
+		fluidityChanged = true;
 	}
 
 	void setGridCellSize(float deltaX, float deltaY) {
@@ -120,6 +157,15 @@ abstract class FluidSolver2D {
 		i2dy = 0.5f / deltaY;
 		idxsq = 1f / (deltaX * deltaX);
 		idysq = 1f / (deltaY * deltaY);
+		streamValid = false;
+	}
+
+	void setAdvectionScheme(byte advectionScheme) {
+		this.advectionScheme = advectionScheme;
+	}
+
+	byte getAdvectionScheme() {
+		return advectionScheme;
 	}
 
 	void setTimeStep(float timeStep) {
@@ -130,12 +176,49 @@ abstract class FluidSolver2D {
 		return timeStep;
 	}
 
+	/** the relaxation steps of the viscous diffusion of the velocity */
+	void setViscousConvergence(ConvergencePolicy viscousConvergence) {
+		this.viscousConvergence = viscousConvergence;
+	}
+
+	ConvergencePolicy getViscousConvergence() {
+		return viscousConvergence;
+	}
+
+	/** the relaxation steps of the pressure Poisson equation of the projection, when it is not solved by multigrid */
+	void setProjectionConvergence(ConvergencePolicy projectionConvergence) {
+		this.projectionConvergence = projectionConvergence;
+	}
+
+	ConvergencePolicy getProjectionConvergence() {
+		return projectionConvergence;
+	}
+
+	/** the convergence of the stream-function V-cycles, relative to the largest vorticity */
+	void setStreamFunctionConvergence(ConvergencePolicy streamConvergence) {
+		this.streamConvergence = streamConvergence;
+	}
+
+	ConvergencePolicy getStreamFunctionConvergence() {
+		return streamConvergence;
+	}
+
+	/** a positive tolerance solves the projection by multigrid to this fraction of the largest divergence, and zero keeps the relaxation steps */
+	void setProjectionTolerance(float projectionTolerance) {
+		this.projectionTolerance = projectionTolerance;
+	}
+
+	float getProjectionTolerance() {
+		return projectionTolerance;
+	}
+
 	private void setObstacleVelocity(float[][] u, float[][] v) {
 		int count = 0;
 		float uw, vw;
 		for (int i = 1; i < nx1; i++) {
-			for (int j = 1; j < ny1; j++) {
-				if (!fluidity[i][j]) {
+			int[] r = solidCells.runs[i];
+			for (int n = 0; n < solidCells.length[i]; n += 2) {
+				for (int j = r[n]; j < r[n + 1]; j++) {
 					uw = uWind[i][j];
 					vw = vWind[i][j];
 					count = 0;
@@ -167,10 +250,15 @@ abstract class FluidSolver2D {
 	}
 
 	// ensure dx/dn = 0 at the boundary (the Neumann boundary condition)
-	private void setObstacleBoundary(float[][] x) {
+	void setObstacleBoundary(float[][] x) {
+		setObstacleBoundary(x, fluidity, solidCells);
+	}
+
+	private void setObstacleBoundary(float[][] x, boolean[][] fluidity, CellRuns solidCells) {
 		for (int i = 1; i < nx1; i++) {
-			for (int j = 1; j < ny1; j++) {
-				if (!fluidity[i][j]) {
+			int[] r = solidCells.runs[i];
+			for (int n = 0; n < solidCells.length[i]; n += 2) {
+				for (int j = r[n]; j < r[n + 1]; j++) {
 					if (fluidity[i - 1][j]) {
 						x[i][j] = x[i - 1][j];
 					} else if (fluidity[i + 1][j]) {
@@ -186,22 +274,10 @@ abstract class FluidSolver2D {
 		}
 	}
 
-	private float getMeanTemperature(int i, int j) {
-		int lowerBound = 0;
-		// search for the upper bound
-		for (int k = j - 1; k > 0; k--) {
-			if (!fluidity[i][k]) {
-				lowerBound = k;
-				break;
-			}
-		}
-		int upperBound = ny;
-		for (int k = j + 1; k < ny; k++) {
-			if (!fluidity[i][k]) {
-				upperBound = k;
-				break;
-			}
-		}
+	// the mean temperature of the segment of column i between the solid cells or borders around the run of fluid cells [from, to)
+	private float getMeanTemperature(int i, int from, int to) {
+		int lowerBound = from - 1;
+		int upperBound = to == ny1 && fluidity[i][ny1] ? ny : to;
 		float t0 = 0;
 		for (int k = lowerBound; k < upperBound; k++) {
 			t0 += t[i][k];
@@ -218,8 +294,9 @@ abstract class FluidSolver2D {
 		case Model2D.BUOYANCY_AVERAGE_ALL:
 			t0 = MathUtil.getAverage(t);
 			for (int i = 1; i < nx1; i++) {
-				for (int j = 1; j < ny1; j++) {
-					if (fluidity[i][j]) {
+				int[] r = fluidCells.runs[i];
+				for (int n = 0; n < fluidCells.length[i]; n += 2) {
+					for (int j = r[n]; j < r[n + 1]; j++) {
 						f[i][j] += (g - b) * t[i][j] + b * t0;
 					}
 				}
@@ -227,9 +304,10 @@ abstract class FluidSolver2D {
 			break;
 		case Model2D.BUOYANCY_AVERAGE_COLUMN:
 			for (int i = 1; i < nx1; i++) {
-				for (int j = 1; j < ny1; j++) {
-					if (fluidity[i][j]) {
-						t0 = getMeanTemperature(i, j);
+				int[] r = fluidCells.runs[i];
+				for (int n = 0; n < fluidCells.length[i]; n += 2) {
+					t0 = getMeanTemperature(i, r[n], r[n + 1]);
+					for (int j = r[n]; j < r[n + 1]; j++) {
 						f[i][j] += (g - b) * t[i][j] + b * t0;
 					}
 				}
@@ -240,10 +318,12 @@ abstract class FluidSolver2D {
 
 	abstract void diffuse(int b, float[][] f0, float[][] f);
 
-	abstract void advect(int b, float[][] f0, float[][] f);
+	/** advect both components of the velocity by the velocity that they had before */
+	abstract void advect(float[][] u, float[][] v);
 
 	// Copying a two-dimensional array is very fast. Considering this, I chose clarity instead of swapping the arrays.
 	void solve(float[][] u, float[][] v) {
+		updateMasks();
 		if (thermalBuoyancy != 0) {
 			applyBuoyancy(v);
 		}
@@ -254,22 +334,21 @@ abstract class FluidSolver2D {
 			conserve(u, v, u0, v0);
 			setObstacleVelocity(u, v);
 		}
-		MiscUtil.copy(u0, u);
-		MiscUtil.copy(v0, v);
-		advect(1, u0, u);
-		advect(2, v0, v);
+		advect(u, v);
 		conserve(u, v, u0, v0);
 		setObstacleVelocity(u, v);
+		takeVorticity(u, v);
 	}
 
 	/*
 	 * enforce the continuity condition div(V)=0 (velocity field must be divergence-free to conserve mass) using the relaxation method: http://en.wikipedia.org/wiki/Relaxation_method. This procedure solves the Poisson equation.
 	 */
-	void conserve(float[][] u, float[][] v, float[][] phi, float[][] div) {
+	void conserve(float[][] u, float[][] v, final float[][] phi, final float[][] div) {
 
 		for (int i = 1; i < nx1; i++) {
-			for (int j = 1; j < ny1; j++) {
-				if (fluidity[i][j]) {
+			int[] r = fluidCells.runs[i];
+			for (int n = 0; n < fluidCells.length[i]; n += 2) {
+				for (int j = r[n]; j < r[n + 1]; j++) {
 					div[i][j] = (u[i + 1][j] - u[i - 1][j]) * i2dx + (v[i][j + 1] - v[i][j - 1]) * i2dy;
 					phi[i][j] = 0;
 				}
@@ -280,21 +359,36 @@ abstract class FluidSolver2D {
 		setObstacleBoundary(div);
 		setObstacleBoundary(phi);
 
-		float s = 0.5f / (idxsq + idysq);
+		if (projectionTolerance > 0) {
+			projectByMultigrid(u, v, phi, div);
+			return;
+		}
 
-		for (int k = 0; k < relaxationSteps; k++) {
-			for (int i = 1; i < nx1; i++) {
-				for (int j = 1; j < ny1; j++) {
-					if (fluidity[i][j]) {
-						phi[i][j] = s * ((phi[i - 1][j] + phi[i + 1][j]) * idxsq + (phi[i][j - 1] + phi[i][j + 1]) * idysq - div[i][j]);
-					}
+		final float s = 0.5f / (idxsq + idysq);
+
+		if (Wavefront.isFixed(projectionConvergence)) {
+			Wavefront.sweep(1, nx1, projectionConvergence.getMaxSteps(), new Wavefront.Column() {
+				public void run(int i, int sweep) {
+					relaxPressure(phi, div, i, s, false);
 				}
-			}
+			});
+		} else {
+			float change;
+			int k = 0;
+			do {
+				k++;
+				boolean measured = projectionConvergence.isMeasured(k);
+				change = 0;
+				for (int i = 1; i < nx1; i++)
+					change = Math.max(change, relaxPressure(phi, div, i, s, measured));
+			} while (!projectionConvergence.isDone(k, change));
 		}
 
+		int[] r;
 		for (int i = 1; i < nx1; i++) {
-			for (int j = 1; j < ny1; j++) {
-				if (fluidity[i][j]) {
+			r = fluidCells.runs[i];
+			for (int n = 0; n < fluidCells.length[i]; n += 2) {
+				for (int j = r[n]; j < r[n + 1]; j++) {
 					u[i][j] -= (phi[i + 1][j] - phi[i - 1][j]) * i2dx;
 					v[i][j] -= (phi[i][j + 1] - phi[i][j - 1]) * i2dy;
 				}
@@ -305,39 +399,120 @@ abstract class FluidSolver2D {
 
 	}
 
-	float[][] getStreamFunction(float[][] u, float[][] v) {
-		if (vorticity == null)
-			vorticity = new float[nx][ny];
-		if (stream == null)
-			stream = new float[nx][ny];
-		calculateVorticity(u, v);
-		calculateStreamFunction();
-		return stream;
+	// relax the pressure of the fluid cells of column i, returning the largest change if it is measured
+	private float relaxPressure(float[][] phi, float[][] div, int i, float s, boolean measured) {
+		float[] pm = phi[i - 1], pi = phi[i], pp = phi[i + 1], di = div[i];
+		int[] r = fluidCells.runs[i];
+		float x, d, prev, change = 0;
+		for (int n = 0; n < fluidCells.length[i]; n += 2) {
+			prev = pi[r[n] - 1];
+			for (int j = r[n]; j < r[n + 1]; j++) {
+				x = MathUtil.flushTiny(s * ((pm[j] + pp[j]) * idxsq + (prev + pi[j + 1]) * idysq - di[j]));
+				if (measured) {
+					d = Math.abs(x - pi[j]);
+					if (d > change)
+						change = d;
+				}
+				pi[j] = prev = x;
+			}
+		}
+		return change;
 	}
 
-	private void calculateStreamFunction() {
-		float s = 0.5f / (idxsq + idysq);
-		for (int i = 0; i < nx; i++) {
-			Arrays.fill(stream[i], 0);
+	// solve the Poisson equation to the projection tolerance and subtract the pressure gradient under the conditions of the multigrid solver
+	void projectByMultigrid(float[][] u, float[][] v, float[][] phi, float[][] div) {
+		if (multigrid == null)
+			multigrid = new PoissonMultigrid2D(nx, ny);
+		SimpleMassBoundary b = (SimpleMassBoundary) boundary;
+		boolean upper = b.getFlowTypeAtBorder(Boundary.UPPER) == MassBoundary.THROUGH;
+		boolean lower = b.getFlowTypeAtBorder(Boundary.LOWER) == MassBoundary.THROUGH;
+		boolean left = b.getFlowTypeAtBorder(Boundary.LEFT) == MassBoundary.THROUGH;
+		boolean right = b.getFlowTypeAtBorder(Boundary.RIGHT) == MassBoundary.THROUGH;
+		multigrid.setOpenBorder(Boundary.UPPER, upper);
+		multigrid.setOpenBorder(Boundary.LOWER, lower);
+		multigrid.setOpenBorder(Boundary.LEFT, left);
+		multigrid.setOpenBorder(Boundary.RIGHT, right);
+		multigrid.setTolerance(projectionTolerance);
+		multigrid.solve(phi, div, fluidity, idxsq, idysq);
+		float p0, pw, pe, pn, ps;
+		for (int i = 1; i < nx1; i++) {
+			int[] r = fluidCells.runs[i];
+			for (int n = 0; n < fluidCells.length[i]; n += 2) {
+				for (int j = r[n]; j < r[n + 1]; j++) {
+					p0 = phi[i][j];
+					pw = i == 1 ? (left ? 0 : p0) : (fluidity[i - 1][j] ? phi[i - 1][j] : p0);
+					pe = i == nx2 ? (right ? 0 : p0) : (fluidity[i + 1][j] ? phi[i + 1][j] : p0);
+					pn = j == 1 ? (upper ? 0 : p0) : (fluidity[i][j - 1] ? phi[i][j - 1] : p0);
+					ps = j == ny2 ? (lower ? 0 : p0) : (fluidity[i][j + 1] ? phi[i][j + 1] : p0);
+					u[i][j] -= (pe - pw) * i2dx;
+					v[i][j] -= (ps - pn) * i2dy;
+				}
+			}
 		}
-		for (int k = 0; k < relaxationSteps; k++) {
+		applyBoundary(1, u);
+		applyBoundary(2, v);
+	}
+
+	// the vorticity is taken by the thread that has changed the velocity, so that the stream function never reads a field in the middle of a step
+	private void takeVorticity(float[][] u, float[][] v) {
+		updateMasks();
+		synchronized (streamLock) {
+			if (vorticity == null)
+				vorticity = new float[nx][ny];
+			calculateVorticity(u, v);
 			for (int i = 1; i < nx1; i++) {
-				for (int j = 1; j < ny1; j++) {
-					if (fluidity[i][j]) {
-						stream[i][j] = s * ((stream[i - 1][j] + stream[i + 1][j]) * idxsq + (stream[i][j - 1] + stream[i][j + 1]) * idysq + vorticity[i][j]);
-					}
+				for (int j = 1; j < ny1; j++)
+					vorticity[i][j] = -vorticity[i][j];
+			}
+			if (fluidityChanged || streamFluidity == null) {
+				if (streamFluidity == null) {
+					streamFluidity = new boolean[nx][ny];
+					streamSolidCells = new CellRuns(nx, ny);
 				}
+				for (int i = 0; i < nx; i++)
+					System.arraycopy(fluidity[i], 0, streamFluidity[i], 0, ny);
+				streamSolidCells.set(streamFluidity, false);
+				fluidityChanged = false;
 			}
-			applyBoundary(0, stream);
-			setObstacleBoundary(stream);
+			streamValid = false;
+		}
+	}
+
+	/** the stream function of the velocity at the end of the last step, which is only calculated again after the velocity has changed */
+	float[][] getStreamFunction() {
+		synchronized (streamLock) {
+			if (stream == null)
+				stream = new float[nx][ny];
+			if (streamValid || vorticity == null)
+				return stream;
+			streamValid = true;
+			calculateStreamFunction();
+			return stream;
+		}
+	}
+
+	// solve laplacian(stream) = -vorticity by multigrid with closed borders, starting from the last solution and removing the mean vorticity of each pocket
+	private void calculateStreamFunction() {
+		if (streamMultigrid == null)
+			streamMultigrid = new PoissonMultigrid2D(nx, ny);
+		streamMultigrid.setTolerance(streamConvergence.getTolerance());
+		streamMultigrid.setMaxCycles(streamConvergence.getMaxSteps());
+		streamMultigrid.solve(stream, vorticity, streamFluidity, idxsq, idysq);
+		if (streamMultigrid.getCycles() == 0) {
+			// the flow has no vorticity
+			for (int i = 0; i < nx; i++)
+				Arrays.fill(stream[i], 0);
 		}
+		applyBoundary(0, stream);
+		setObstacleBoundary(stream, streamFluidity, streamSolidCells);
 	}
 
 	private void calculateVorticity(float[][] u, float[][] v) {
 		float du_dy, dv_dx;
 		for (int i = 1; i < nx1; i++) {
-			for (int j = 1; j < ny1; j++) {
-				if (fluidity[i][j]) {
+			int[] r = fluidCells.runs[i];
+			for (int n = 0; n < fluidCells.length[i]; n += 2) {
+				for (int j = r[n]; j < r[n + 1]; j++) {
 					du_dy = (u[i][j + 1] - u[i][j - 1]) / (2 * deltaY);
 					dv_dx = (v[i + 1][j] - v[i - 1][j]) / (2 * deltaX);
 					vorticity[i][j] = du_dy - dv_dx;
@@ -348,6 +523,37 @@ abstract class FluidSolver2D {
 		setObstacleBoundary(vorticity);
 	}
 
+	/** apply the boundary to the rows of column i, and to the left or right border after column 1 or nx - 2, as applyBoundary(direction, f) does for the whole grid */
+	void applyBoundary(int direction, float[][] f, int i) {
+		SimpleMassBoundary b = (SimpleMassBoundary) boundary;
+		boolean horizontal = direction == 1;
+		boolean vertical = direction == 2;
+		if (vertical && b.getFlowTypeAtBorder(Boundary.UPPER) == MassBoundary.REFLECTIVE) {
+			f[i][0] = -f[i][1];
+		} else {
+			f[i][0] = f[i][1];
+		}
+		if (vertical && b.getFlowTypeAtBorder(Boundary.LOWER) == MassBoundary.REFLECTIVE) {
+			f[i][ny1] = -f[i][ny2];
+		} else {
+			f[i][ny1] = f[i][ny2];
+		}
+		if (i == 1) {
+			boolean reflective = horizontal && b.getFlowTypeAtBorder(Boundary.LEFT) == MassBoundary.REFLECTIVE;
+			for (int j = 1; j < ny1; j++)
+				f[0][j] = reflective ? -f[1][j] : f[1][j];
+			f[0][0] = 0.5f * (f[1][0] + f[0][1]);
+			f[0][ny1] = 0.5f * (f[1][ny1] + f[0][ny2]);
+		}
+		if (i == nx2) {
+			boolean reflective = horizontal && b.getFlowTypeAtBorder(Boundary.RIGHT) == MassBoundary.REFLECTIVE;
+			for (int j = 1; j < ny1; j++)
+				f[nx1][j] = reflective ? -f[nx2][j] : f[nx2][j];
+			f[nx1][0] = 0.5f * (f[nx2][0] + f[nx1][1]);
+			f[nx1][ny1] = 0.5f * (f[nx2][ny1] + f[nx1][ny2]);
+		}
+	}
+
 	/* b=1 horizontal; b=2 vertical */
 	void applyBoundary(int direction, float[][] f) {
 		SimpleMassBoundary b = (SimpleMassBoundary) boundary;
@@ -6,6 +6,7 @@
 
 package org.concord.energy2d.model;
 
+import org.concord.energy2d.math.MathUtil;
 import org.concord.energy2d.util.MiscUtil;
 
 /**
@@ -14,63 +15,154 @@ import org.concord.energy2d.util.MiscUtil;
  */
 class FluidSolver2DImpl extends FluidSolver2D {
 
+	// the predictor of MacCormack for three columns of each component, column i at i % 3
+	private float[][] pu, pv;
+
 	FluidSolver2DImpl(int nx, int ny) {
 		super(nx, ny);
 	}
 
-	void diffuse(int b, float[][] f0, float[][] f) {
+	void diffuse(final int b, final float[][] f0, final float[][] f) {
 
 		// Copying a two-dimensional array is very fast: it takes less than 1% compared with the time for the relaxation solver below. Considering this, I chose clarity instead of swapping the arrays.
 		MiscUtil.copy(f0, f);
 
-		float hx = timeStep * viscosity * idxsq;
-		float hy = timeStep * viscosity * idysq;
-		float dn = 1f / (1 + 2 * (hx + hy));
+		final float hx = timeStep * viscosity * idxsq;
+		final float hy = timeStep * viscosity * idysq;
+		final float dn = 1f / (1 + 2 * (hx + hy));
+
+		if (Wavefront.isFixed(viscousConvergence)) {
+			Wavefront.sweep(1, nx1, viscousConvergence.getMaxSteps(), new Wavefront.Column() {
+				public void run(int i, int sweep) {
+					relax(f0, f, i, hx, hy, dn, false);
+					applyBoundary(b, f, i);
+				}
+			});
+		} else {
+			float change;
+			int k = 0;
+			do {
+				k++;
+				boolean measured = viscousConvergence.isMeasured(k);
+				change = 0;
+				for (int i = 1; i < nx1; i++)
+					change = Math.max(change, relax(f0, f, i, hx, hy, dn, measured));
+				applyBoundary(b, f);
+			} while (!viscousConvergence.isDone(k, change));
+		}
+
+	}
 
-		for (int k = 0; k < relaxationSteps; k++) {
-			for (int i = 1; i < nx1; i++) {
-				for (int j = 1; j < ny1; j++) {
-					if (fluidity[i][j]) {
-						f[i][j] = (f0[i][j] + hx * (f[i - 1][j] + f[i + 1][j]) + hy * (f[i][j - 1] + f[i][j + 1])) * dn;
-					}
+	// relax the fluid cells of column i, returning the largest change if it is measured
+	private float relax(float[][] f0, float[][] f, int i, float hx, float hy, float dn, boolean measured) {
+		float[] fm = f[i - 1], fi = f[i], fp = f[i + 1], f0i = f0[i];
+		int[] r = fluidCells.runs[i];
+		float x, d, prev, change = 0;
+		for (int n = 0; n < fluidCells.length[i]; n += 2) {
+			prev = fi[r[n] - 1];
+			for (int j = r[n]; j < r[n + 1]; j++) {
+				x = MathUtil.flushTiny((f0i[j] + hx * (fm[j] + fp[j]) + hy * (prev + fi[j + 1])) * dn);
+				if (measured) {
+					d = Math.abs(x - fi[j]);
+					if (d > change)
+						change = d;
 				}
+				fi[j] = prev = x;
 			}
-			applyBoundary(b, f);
 		}
+		return change;
+	}
 
+	void advect(float[][] u, float[][] v) {
+		if (advectionScheme == Model2D.ADVECTION_SEMI_LAGRANGIAN) {
+			MiscUtil.copy(u0, u);
+			MiscUtil.copy(v0, v);
+			semiLagrangian(1, u0, u);
+			semiLagrangian(2, v0, v);
+		} else {
+			macCormack(u, v);
+		}
 	}
 
-	void advect(int b, float[][] f0, float[][] f) {
-		macCormack(b, f0, f);
+	// the velocity of the last step carries both of its components
+	private void semiLagrangian(int b, float[][] f0, float[][] f) {
+		SemiLagrangian2D.advect(f0, f, u0, v0, timeStep / deltaX, timeStep / deltaY, fluidity, fluidCells, 1, nx1);
+		applyBoundary(b, f);
 	}
 
-	// MacCormack
-	private void macCormack(int b, float[][] f0, float[][] f) {
+	// MacCormack for both components in one pass over the grid, in place, with the predictor one column ahead of the corrector
+	private void macCormack(float[][] u, float[][] v) {
 
+		if (pu == null) {
+			pu = new float[3][ny];
+			pv = new float[3][ny];
+		}
 		float tx = 0.5f * timeStep / deltaX;
 		float ty = 0.5f * timeStep / deltaY;
+		SimpleMassBoundary b = (SimpleMassBoundary) boundary;
+		boolean upper = b.getFlowTypeAtBorder(Boundary.UPPER) == MassBoundary.REFLECTIVE;
+		boolean lower = b.getFlowTypeAtBorder(Boundary.LOWER) == MassBoundary.REFLECTIVE;
+		boolean left = b.getFlowTypeAtBorder(Boundary.LEFT) == MassBoundary.REFLECTIVE;
+		boolean right = b.getFlowTypeAtBorder(Boundary.RIGHT) == MassBoundary.REFLECTIVE;
+
+		predict(u, v, 1, tx, ty, upper, lower);
+		predictBorder(0, 1, left);
 		for (int i = 1; i < nx1; i++) {
-			for (int j = 1; j < ny1; j++) {
-				if (fluidity[i][j]) {
-					f[i][j] = f0[i][j] - tx * (u0[i + 1][j] * f0[i + 1][j] - u0[i - 1][j] * f0[i - 1][j]) - ty * (v0[i][j + 1] * f0[i][j + 1] - v0[i][j - 1] * f0[i][j - 1]);
-				}
-			}
+			if (i < nx2)
+				predict(u, v, i + 1, tx, ty, upper, lower);
+			else
+				predictBorder(nx1, nx2, right);
+			correct(u, v, i, tx, ty);
 		}
 
-		applyBoundary(b, f);
+		applyBoundary(1, u);
+		applyBoundary(2, v);
 
-		for (int i = 1; i < nx1; i++) {
-			for (int j = 1; j < ny1; j++) {
-				if (fluidity[i][j]) {
-					f0[i][j] = 0.5f * (f0[i][j] + f[i][j]) - 0.5f * tx * u0[i][j] * (f[i + 1][j] - f[i - 1][j]) - 0.5f * ty * v0[i][j] * (f[i][j + 1] - f[i][j - 1]);
-				}
+	}
+
+	// the predictor of column i, whose other cells keep the velocity and whose upper and lower borders are set as applyBoundary sets them
+	private void predict(float[][] u, float[][] v, int i, float tx, float ty, boolean upper, boolean lower) {
+		float[] um = u[i - 1], ui = u[i], up = u[i + 1], vm = v[i - 1], vi = v[i], vp = v[i + 1];
+		float[] qu = pu[i % 3], qv = pv[i % 3];
+		System.arraycopy(ui, 0, qu, 0, ny);
+		System.arraycopy(vi, 0, qv, 0, ny);
+		int[] r = fluidCells.runs[i];
+		for (int n = 0; n < fluidCells.length[i]; n += 2) {
+			for (int j = r[n]; j < r[n + 1]; j++) {
+				qu[j] = ui[j] - tx * (up[j] * up[j] - um[j] * um[j]) - ty * (vi[j + 1] * ui[j + 1] - vi[j - 1] * ui[j - 1]);
+				qv[j] = vi[j] - tx * (up[j] * vp[j] - um[j] * vm[j]) - ty * (vi[j + 1] * vi[j + 1] - vi[j - 1] * vi[j - 1]);
 			}
 		}
+		qu[0] = qu[1];
+		qu[ny1] = qu[ny2];
+		qv[0] = upper ? -qv[1] : qv[1];
+		qv[ny1] = lower ? -qv[ny2] : qv[ny2];
+	}
 
-		MiscUtil.copy(f, f0);
-
-		applyBoundary(b, f);
+	// the predictor of the left or right border, copied from the column next to it
+	private void predictBorder(int i, int inside, boolean reflective) {
+		float[] qu = pu[i % 3], qv = pv[i % 3], ru = pu[inside % 3], rv = pv[inside % 3];
+		for (int j = 1; j < ny1; j++) {
+			qu[j] = reflective ? -ru[j] : ru[j];
+			qv[j] = rv[j];
+		}
+	}
 
+	private void correct(float[][] u, float[][] v, int i, float tx, float ty) {
+		float[] ui = u[i], vi = v[i];
+		float[] qum = pu[(i - 1) % 3], qu = pu[i % 3], qup = pu[(i + 1) % 3];
+		float[] qvm = pv[(i - 1) % 3], qv = pv[i % 3], qvp = pv[(i + 1) % 3];
+		float x, y;
+		int[] r = fluidCells.runs[i];
+		for (int n = 0; n < fluidCells.length[i]; n += 2) {
+			for (int j = r[n]; j < r[n + 1]; j++) {
+				// both components read the velocity of the cell before either is written
+				x = 0.5f * (ui[j] + qu[j]) - 0.5f * tx * ui[j] * (qup[j] - qum[j]) - 0.5f * ty * vi[j] * (qu[j + 1] - qu[j - 1]);
+				y = 0.5f * (vi[j] + qv[j]) - 0.5f * tx * ui[j] * (qvp[j] - qvm[j]) - 0.5f * ty * vi[j] * (qv[j + 1] - qv[j - 1]);
+				ui[j] = x;
+				vi[j] = y;
+			}
+		}
 	}
 
 }
@@ -0,0 +1,119 @@
+/*
+ *   Copyright (C) 2009  The Concord Consortium, Inc.,
+ *   25 Love Lane, Concord, MA 01742
+ *
+ */
+
+package org.concord.energy2d.model;
+
+import org.concord.energy2d.math.MathUtil;
+import org.concord.energy2d.util.MiscUtil;
+
+/**
+ * A fluid solver that relaxes the viscous diffusion and the projection in red-black order instead of the lexicographic order of the default solver.
+ */
+class FluidSolver2DRedBlack extends FluidSolver2DImpl {
+
+	FluidSolver2DRedBlack(int nx, int ny) {
+		super(nx, ny);
+	}
+
+	void diffuse(int b, float[][] f0, float[][] f) {
+
+		MiscUtil.copy(f0, f);
+
+		float hx = timeStep * viscosity * idxsq;
+		float hy = timeStep * viscosity * idysq;
+		float dn = 1f / (1 + 2 * (hx + hy));
+
+		float x, d, change;
+		int k = 0;
+		do {
+			k++;
+			boolean measured = viscousConvergence.isMeasured(k);
+			change = 0;
+			for (int c = 0; c < 2; c++) {
+				for (int i = 1; i < nx1; i++) {
+					int[] r = fluidCells.runs[i];
+					for (int n = 0; n < fluidCells.length[i]; n += 2) {
+						// the first cell of the run that has the color
+						for (int j = r[n] + (((i + r[n]) & 1) ^ c); j < r[n + 1]; j += 2) {
+							x = MathUtil.flushTiny((f0[i][j] + hx * (f[i - 1][j] + f[i + 1][j]) + hy * (f[i][j - 1] + f[i][j + 1])) * dn);
+							if (measured) {
+								d = Math.abs(x - f[i][j]);
+								if (d > change)
+									change = d;
+							}
+							f[i][j] = x;
+						}
+					}
+				}
+			}
+			applyBoundary(b, f);
+		} while (!viscousConvergence.isDone(k, change));
+
+	}
+
+	void conserve(float[][] u, float[][] v, float[][] phi, float[][] div) {
+
+		for (int i = 1; i < nx1; i++) {
+			int[] r = fluidCells.runs[i];
+			for (int n = 0; n < fluidCells.length[i]; n += 2) {
+				for (int j = r[n]; j < r[n + 1]; j++) {
+					div[i][j] = (u[i + 1][j] - u[i - 1][j]) * i2dx + (v[i][j + 1] - v[i][j - 1]) * i2dy;
+					phi[i][j] = 0;
+				}
+			}
+		}
+		applyBoundary(0, div);
+		applyBoundary(0, phi);
+		setObstacleBoundary(div);
+		setObstacleBoundary(phi);
+
+		if (getProjectionTolerance() > 0) {
+			projectByMultigrid(u, v, phi, div);
+			return;
+		}
+
+		float s = 0.5f / (idxsq + idysq);
+
+		float x, d, change;
+		int k = 0;
+		do {
+			k++;
+			boolean measured = projectionConvergence.isMeasured(k);
+			change = 0;
+			for (int c = 0; c < 2; c++) {
+				for (int i = 1; i < nx1; i++) {
+					int[] r = fluidCells.runs[i];
+					for (int n = 0; n < fluidCells.length[i]; n += 2) {
+						// the first cell of the run that has the color
+						for (int j = r[n] + (((i + r[n]) & 1) ^ c); j < r[n + 1]; j += 2) {
+							x = MathUtil.flushTiny(s * ((phi[i - 1][j] + phi[i + 1][j]) * idxsq + (phi[i][j - 1] + phi[i][j + 1]) * idysq - div[i][j]));
+							if (measured) {
+								d = Math.abs(x - phi[i][j]);
+								if (d > change)
+									change = d;
+							}
+							phi[i][j] = x;
+						}
+					}
+				}
+			}
+		} while (!projectionConvergence.isDone(k, change));
+
+		for (int i = 1; i < nx1; i++) {
+			int[] r = fluidCells.runs[i];
+			for (int n = 0; n < fluidCells.length[i]; n += 2) {
+				for (int j = r[n]; j < r[n + 1]; j++) {
+					u[i][j] -= (phi[i + 1][j] - phi[i - 1][j]) * i2dx;
+					v[i][j] -= (phi[i][j + 1] - phi[i][j - 1]) * i2dy;
+				}
+			}
+		}
+		applyBoundary(1, u);
+		applyBoundary(2, v);
+
+	}
+
+}
@@ -0,0 +1,105 @@
+/*
+ *   Copyright (C) 2009  The Concord Consortium, Inc.,
+ *   25 Love Lane, Concord, MA 01742
+ */
+
+package org.concord.energy2d.model;
+
+import java.util.Arrays;
+
+/**
+ * The grid points along one axis of a model, each at the center of its cell, where the cells are either uniform or each have their own width.
+ */
+class GridAxis {
+
+	// the width of the cells of a uniform axis, or zero if the axis is stretched
+	private float delta;
+
+	// the coordinate of each point, the width of its cell, and the distance to the next point (the last is its width)
+	private float[] position, width, spacing;
+	private float minimumWidth;
+
+	/** a uniform axis of n points over the length */
+	GridAxis(int n, float length) {
+		delta = length / n;
+		position = new float[n];
+		width = new float[n];
+		spacing = new float[n];
+		for (int i = 0; i < n; i++)
+			position[i] = i * delta;
+		Arrays.fill(width, delta);
+		Arrays.fill(spacing, delta);
+		minimumWidth = delta;
+	}
+
+	/** a stretched axis whose cells are as wide as the weights, scaled to add up to the length */
+	GridAxis(float[] weights, float length) {
+		int n = weights.length;
+		float sum = 0;
+		for (float w : weights) {
+			if (!(w > 0))
+				throw new IllegalArgumentException("The widths of the grid cells must be positive.");
+			sum += w;
+		}
+		position = new float[n];
+		width = new float[n];
+		spacing = new float[n];
+		minimumWidth = Float.MAX_VALUE;
+		for (int i = 0; i < n; i++) {
+			width[i] = weights[i] * length / sum;
+			if (minimumWidth > width[i])
+				minimumWidth = width[i];
+		}
+		for (int i = 0; i < n - 1; i++) {
+			spacing[i] = 0.5f * (width[i] + width[i + 1]);
+			position[i + 1] = position[i] + spacing[i];
+		}
+		spacing[n - 1] = width[n - 1];
+	}
+
+	boolean isUniform() {
+		return delta > 0;
+	}
+
+	/** the coordinate of point i */
+	float getPosition(int i) {
+		return delta > 0 ? i * delta : position[i];
+	}
+
+	/** the widths of the cells, which must not be changed */
+	float[] getWidth() {
+		return width;
+	}
+
+	/** the distance from point i to the next */
+	float getSpacing(int i) {
+		return spacing[i];
+	}
+
+	/** the distances from each point to the next, which must not be changed */
+	float[] getSpacing() {
+		return spacing;
+	}
+
+	float getMinimumWidth() {
+		return minimumWidth;
+	}
+
+	/** the index of the cell that contains coordinate x, which is outside the axis if x is */
+	int getIndex(float x) {
+		if (delta > 0)
+			return Math.round(x / delta);
+		int n1 = position.length - 1;
+		if (x < 0)
+			return Math.round(x / width[0]);
+		if (x >= position[n1])
+			return n1 + Math.round((x - position[n1]) / width[n1]);
+		int i = Arrays.binarySearch(position, x);
+		if (i >= 0)
+			return i;
+		// the last point before x, whose cell ends half its width after it
+		i = -i - 2;
+		return x - position[i] < 0.5f * width[i] ? i : i + 1;
+	}
+
+}
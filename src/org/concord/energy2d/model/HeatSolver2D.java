@@ -7,6 +7,8 @@ package org.concord.energy2d.model;
 
 import java.util.Arrays;
 
+import org.concord.energy2d.util.MiscUtil;
+
 /**
  * @author Charles Xie
  * 
@@ -24,9 +26,21 @@ abstract class HeatSolver2D {
 	float[][] t0; // array that stores the previous temperature results
 	boolean[][] fluidity;
 	float deltaX, deltaY;
+	// the columns and rows of the grid, whose widths differ from the mean cell size if the grid is stretched
+	GridAxis gridX, gridY;
 	float timeStep = 0.1f;
 	float backgroundTemperature;
 	float zHeatDiffusivity;
+	ConvergencePolicy convergence = ConvergencePolicy.DEFAULT;
+	byte advectionScheme = Model2D.ADVECTION_MACCORMACK;
+
+	// the stencil of the implicit equation, which only changes with the material properties, the cell size and the time step
+	float[][] sc, ax, bx, ay, by, dinv;
+	private volatile boolean coefficientsValid;
+
+	// the cells that are relaxed, the cells whose temperature is fixed, and the fluid cells that are advected
+	CellRuns freeCells, fixedCells, fluidCells;
+	private volatile boolean masksValid;
 
 	HeatSolver2D(int nx, int ny) {
 		this.nx = nx;
@@ -47,19 +61,46 @@ abstract class HeatSolver2D {
 
 	void setTimeStep(float timeStep) {
 		this.timeStep = timeStep;
+		coefficientsValid = false;
 	}
 
 	float getTimeStep() {
 		return timeStep;
 	}
 
+	/** the number of relaxation steps of a solver that relaxes; a direct solver ignores it */
+	void setConvergence(ConvergencePolicy convergence) {
+		this.convergence = convergence;
+	}
+
+	ConvergencePolicy getConvergence() {
+		return convergence;
+	}
+
+	void setAdvectionScheme(byte advectionScheme) {
+		this.advectionScheme = advectionScheme;
+	}
+
+	byte getAdvectionScheme() {
+		return advectionScheme;
+	}
+
 	void setFluidity(boolean[][] fluidity) {
 		this.fluidity = fluidity;
+		masksValid = false;
 	}
 
 	void setGridCellSize(float deltaX, float deltaY) {
 		this.deltaX = deltaX;
 		this.deltaY = deltaY;
+		coefficientsValid = false;
+	}
+
+	/** the conduction follows the widths of the columns and rows; the advection uses the mean cell size of setGridCellSize() */
+	void setGrid(GridAxis gridX, GridAxis gridY) {
+		this.gridX = gridX;
+		this.gridY = gridY;
+		coefficientsValid = false;
 	}
 
 	void setBoundary(ThermalBoundary boundary) {
@@ -77,14 +118,68 @@ abstract class HeatSolver2D {
 
 	void setConductivity(float[][] conductivity) {
 		this.conductivity = conductivity;
+		coefficientsValid = false;
 	}
 
 	void setSpecificHeat(float[][] specificHeat) {
 		this.specificHeat = specificHeat;
+		coefficientsValid = false;
 	}
 
 	void setDensity(float[][] density) {
 		this.density = density;
+		coefficientsValid = false;
+	}
+
+	/** called when the conductivity, specific heat or density arrays have been changed in place */
+	void invalidateCoefficients() {
+		coefficientsValid = false;
+	}
+
+	// rebuild the stencil of the implicit equation and the reciprocal of its diagonal if they are invalid, returning whether they have been rebuilt
+	boolean updateCoefficients() {
+		if (coefficientsValid)
+			return false;
+		coefficientsValid = true;
+		if (sc == null) {
+			sc = new float[nx][ny];
+			ax = new float[nx][ny];
+			bx = new float[nx][ny];
+			ay = new float[nx][ny];
+			by = new float[nx][ny];
+			dinv = new float[nx][ny];
+		}
+		// the flux through a face is the mean conductivity of the two cells times their temperature difference over their distance, spread over the width of the cell
+		float[] sx = gridX.getSpacing(), sy = gridY.getSpacing(), wx = gridX.getWidth(), wy = gridY.getWidth();
+		float invTimeStep = 1f / timeStep;
+		float rij, sij, axij, bxij, ayij, byij, hxm, hxp, hym, hyp;
+		float[] km, ki, kp, ci, di;
+		for (int i = 1; i < nx1; i++) {
+			km = conductivity[i - 1];
+			ki = conductivity[i];
+			kp = conductivity[i + 1];
+			ci = specificHeat[i];
+			di = density[i];
+			hxm = 0.5f / (sx[i - 1] * wx[i]);
+			hxp = 0.5f / (sx[i] * wx[i]);
+			for (int j = 1; j < ny1; j++) {
+				sij = ci[j] * di[j] * invTimeStep;
+				rij = ki[j];
+				axij = hxm * (rij + km[j]);
+				bxij = hxp * (rij + kp[j]);
+				hym = 0.5f / (sy[j - 1] * wy[j]);
+				hyp = 0.5f / (sy[j] * wy[j]);
+				ayij = hym * (rij + ki[j - 1]);
+				byij = hyp * (rij + ki[j + 1]);
+				sc[i][j] = sij;
+				ax[i][j] = axij;
+				bx[i][j] = bxij;
+				ay[i][j] = ayij;
+				by[i][j] = byij;
+				dinv[i][j] = 1f / (sij + axij + bxij + ayij + byij);
+			}
+		}
+		return true;
 	}
 
 	void setPower(float[][] q) {
@@ -93,10 +188,147 @@ abstract class HeatSolver2D {
 
 	void setTemperatureBoundary(float[][] tb) {
 		this.tb = tb;
+		masksValid = false;
+	}
+
+	/** called when the fluidity or the temperature boundary arrays have been changed in place */
+	void invalidateMasks() {
+		masksValid = false;
+	}
+
+	// rebuild the runs of cells from the fluidity and temperature boundary arrays if they have changed
+	void updateMasks() {
+		if (masksValid)
+			return;
+		masksValid = true;
+		if (freeCells == null) {
+			freeCells = new CellRuns(nx, ny);
+			fixedCells = new CellRuns(nx, ny);
+			fluidCells = new CellRuns(nx, ny);
+		}
+		freeCells.setNaN(tb, true);
+		fixedCells.setNaN(tb, false);
+		fluidCells.set(fluidity, true);
+	}
+
+	// the cells of a fixed temperature take it before they are read by their neighbors
+	void setFixedTemperatures(float[][] t) {
+		int[] r;
+		float[] ti, tbi;
+		for (int i = 1; i < nx1; i++) {
+			r = fixedCells.runs[i];
+			ti = t[i];
+			tbi = tb[i];
+			for (int k = 0; k < fixedCells.length[i]; k += 2) {
+				for (int j = r[k]; j < r[k + 1]; j++)
+					ti[j] = tbi[j];
+			}
+		}
 	}
 
 	abstract void solve(boolean convective, float[][] t);
 
+	void advect(float[][] t) {
+		if (advectionScheme == Model2D.ADVECTION_SEMI_LAGRANGIAN)
+			semiLagrangian(t);
+		else
+			macCormack(t);
+	}
+
+	// the temperature is traced back from a copy of itself in t0
+	private void semiLagrangian(float[][] t) {
+		MiscUtil.copy(t0, t);
+		SemiLagrangian2D.advect(t0, t, u, v, timeStep / deltaX, timeStep / deltaY, fluidity, fluidCells, 1, nx1);
+		applyBoundary(t);
+	}
+
+	// MacCormack in one pass over the grid, with the predictor one column ahead of the corrector
+	private void macCormack(float[][] t) {
+
+		float tx = 0.5f * timeStep / deltaX;
+		float ty = 0.5f * timeStep / deltaY;
+		predict(t, 1, tx, ty);
+		applyBoundary(t0, 1);
+		for (int i = 1; i < nx1; i++) {
+			if (i < nx2) {
+				predict(t, i + 1, tx, ty);
+				applyBoundary(t0, i + 1);
+			}
+			correct(t, i, tx, ty);
+		}
+
+		applyBoundary(t);
+
+	}
+
+	private void predict(float[][] t, int i, float tx, float ty) {
+		float[] tm = t[i - 1], ti = t[i], tp = t[i + 1], um = u[i - 1], up = u[i + 1], vi = v[i], pi = t0[i];
+		int[] r = fluidCells.runs[i];
+		for (int k = 0; k < fluidCells.length[i]; k += 2) {
+			for (int j = r[k]; j < r[k + 1]; j++)
+				pi[j] = ti[j] - tx * (up[j] * tp[j] - um[j] * tm[j]) - ty * (vi[j + 1] * ti[j + 1] - vi[j - 1] * ti[j - 1]);
+		}
+	}
+
+	private void correct(float[][] t, int i, float tx, float ty) {
+		float[] ti = t[i], ui = u[i], vi = v[i], pm = t0[i - 1], pi = t0[i], pp = t0[i + 1];
+		int[] r = fluidCells.runs[i];
+		for (int k = 0; k < fluidCells.length[i]; k += 2) {
+			for (int j = r[k]; j < r[k + 1]; j++)
+				ti[j] = 0.5f * (ti[j] + pi[j]) - 0.5f * tx * ui[j] * (pp[j] - pm[j]) - 0.5f * ty * vi[j] * (pi[j + 1] - pi[j - 1]);
+		}
+	}
+
+	// a simple proportional control that pulls the temperature toward the background, standing in for the heat that flows in the z direction
+	void correctZ(float[][] t) {
+		float z = zHeatDiffusivity * timeStep;
+		int[] r;
+		for (int i = 1; i < nx1; i++) {
+			r = freeCells.runs[i];
+			for (int k = 0; k < freeCells.length[i]; k += 2) {
+				for (int j = r[k]; j < r[k + 1]; j++)
+					t[i][j] -= z * (t0[i][j] - backgroundTemperature);
+			}
+		}
+	}
+
+	// the part of applyBoundary(t) that depends on interior column i, which leaves the same borders when it is applied to every column in turn
+	void applyBoundary(float[][] t, int i) {
+
+		if (boundary instanceof DirichletThermalBoundary) {
+			DirichletThermalBoundary b = (DirichletThermalBoundary) boundary;
+			t[i][0] = b.getTemperatureAtBorder(Boundary.UPPER);
+			t[i][ny1] = b.getTemperatureAtBorder(Boundary.LOWER);
+			if (i == 1)
+				Arrays.fill(t[0], b.getTemperatureAtBorder(Boundary.LEFT));
+			if (i == nx2)
+				Arrays.fill(t[nx1], b.getTemperatureAtBorder(Boundary.RIGHT));
+		} else if (boundary instanceof ComplexDirichletThermalBoundary) {
+			ComplexDirichletThermalBoundary b = (ComplexDirichletThermalBoundary) boundary;
+			t[i][0] = b.getTemperaturesAtBorder(Boundary.UPPER)[i];
+			t[i][ny1] = b.getTemperaturesAtBorder(Boundary.LOWER)[i];
+			if (i == 1)
+				System.arraycopy(b.getTemperaturesAtBorder(Boundary.LEFT), 0, t[0], 0, ny);
+			if (i == nx2)
+				System.arraycopy(b.getTemperaturesAtBorder(Boundary.RIGHT), 0, t[nx1], 0, ny);
+		} else if (boundary instanceof NeumannThermalBoundary) {
+			NeumannThermalBoundary b = (NeumannThermalBoundary) boundary;
+			t[i][0] = t[i][1] + b.getFluxAtBorder(Boundary.UPPER) * gridY.getSpacing(0) / conductivity[i][0];
+			t[i][ny1] = t[i][ny2] - b.getFluxAtBorder(Boundary.LOWER) * gridY.getSpacing(ny2) / conductivity[i][ny1];
+			if (i == 1) {
+				float fW = b.getFluxAtBorder(Boundary.LEFT) * gridX.getSpacing(0);
+				for (int j = 0; j < ny; j++)
+					t[0][j] = t[1][j] - fW / conductivity[0][j];
+			}
+			if (i == nx2) {
+				float fE = b.getFluxAtBorder(Boundary.RIGHT) * gridX.getSpacing(nx2);
+				for (int j = 0; j < ny; j++)
+					t[nx1][j] = t[nx2][j] + fE / conductivity[nx1][j];
+			}
+		}
+
+	}
+
 	void applyBoundary(float[][] t) {
 
 		if (boundary instanceof DirichletThermalBoundary) {
@@ -129,17 +361,18 @@ abstract class HeatSolver2D {
 			}
 		} else if (boundary instanceof NeumannThermalBoundary) {
 			NeumannThermalBoundary b = (NeumannThermalBoundary) boundary;
-			float fN = b.getFluxAtBorder(Boundary.UPPER);
-			float fS = b.getFluxAtBorder(Boundary.LOWER);
-			float fW = b.getFluxAtBorder(Boundary.LEFT);
-			float fE = b.getFluxAtBorder(Boundary.RIGHT);
+			// a flux times the distance between the border and the cell next to it is the temperature difference times the conductivity
+			float fN = b.getFluxAtBorder(Boundary.UPPER) * gridY.getSpacing(0);
+			float fS = b.getFluxAtBorder(Boundary.LOWER) * gridY.getSpacing(ny2);
+			float fW = b.getFluxAtBorder(Boundary.LEFT) * gridX.getSpacing(0);
+			float fE = b.getFluxAtBorder(Boundary.RIGHT) * gridX.getSpacing(nx2);
 			for (int i = 0; i < nx; i++) {
-				t[i][0] = t[i][1] + fN * deltaY / conductivity[i][0];
-				t[i][ny1] = t[i][ny2] - fS * deltaY / conductivity[i][ny1];
+				t[i][0] = t[i][1] + fN / conductivity[i][0];
+				t[i][ny1] = t[i][ny2] - fS / conductivity[i][ny1];
 			}
 			for (int j = 0; j < ny; j++) {
-				t[0][j] = t[1][j] - fW * deltaX / conductivity[0][j];
-				t[nx1][j] = t[nx2][j] + fE * deltaX / conductivity[nx1][j];
+				t[0][j] = t[1][j] - fW / conductivity[0][j];
+				t[nx1][j] = t[nx2][j] + fE / conductivity[nx1][j];
 			}
 		}
 
@@ -0,0 +1,133 @@
+/*
+ *   Copyright (C) 2009  The Concord Consortium, Inc.,
+ *   25 Love Lane, Concord, MA 01742
+ */
+
+package org.concord.energy2d.model;
+
+import org.concord.energy2d.math.MathUtil;
+import org.concord.energy2d.math.Tdma;
+import org.concord.energy2d.util.MiscUtil;
+
+/**
+ * An alternating-direction implicit solver, which solves the lines of an x sweep and then a y sweep exactly by the Thomas algorithm.
+ */
+class HeatSolver2DAdi extends HeatSolver2D {
+
+	// the five work arrays (a, b, c, d, x) of the tridiagonal solver
+	private float[][] w;
+
+	HeatSolver2DAdi(int nx, int ny) {
+		super(nx, ny);
+		w = new float[5][Math.max(nx, ny)];
+	}
+
+	void solve(boolean convective, float[][] t) {
+
+		MiscUtil.copy(t0, t);
+		updateCoefficients();
+		updateMasks();
+
+		// implicit in x: the lines are rows of constant j
+		for (int j = 1; j < ny1; j++)
+			solveX(t, j);
+		applyBoundary(t);
+
+		// implicit in y: the lines are the columns t[i] of constant i
+		for (int i = 1; i < nx1; i++)
+			solveY(t, i);
+
+		if (zHeatDiffusivity > 0)
+			correctZ(t);
+		applyBoundary(t);
+
+		if (convective) {
+			advect(t);
+		}
+
+	}
+
+	// (sc + ax + bx) t[i][j] - ax t[i-1][j] - bx t[i+1][j] = sc t0[i][j] + q[i][j], with the cached coefficients of the stencil
+	private void solveX(float[][] t, int j) {
+		float[] a = w[0], b = w[1], c = w[2], d = w[3], x = w[4];
+		float sij;
+		for (int i = 1; i < nx1; i++) {
+			if (Float.isNaN(tb[i][j])) {
+				sij = sc[i][j];
+				a[i] = -ax[i][j];
+				c[i] = -bx[i][j];
+				b[i] = sij - a[i] - c[i];
+				d[i] = sij * t0[i][j] + q[i][j];
+			} else {
+				a[i] = c[i] = 0;
+				b[i] = 1;
+				d[i] = tb[i][j];
+			}
+		}
+		setBoundaryRow(a, b, c, d, Boundary.LEFT, 0, j, gridX.getSpacing(0) / conductivity[0][j], t[0][j]);
+		setBoundaryRow(a, b, c, d, Boundary.RIGHT, nx1, j, gridX.getSpacing(nx2) / conductivity[nx1][j], t[nx1][j]);
+		Tdma.solve(a, b, c, d, x, nx);
+		for (int i = 1; i < nx1; i++)
+			t[i][j] = MathUtil.flushTiny(x[i]);
+	}
+
+	// the same for the y direction, with the right-hand side taken from the result of the x sweep
+	private void solveY(float[][] t, int i) {
+		float[] a = w[0], b = w[1], c = w[2], d = w[3], x = w[4];
+		float[] ti = t[i], ki = conductivity[i], tbi = tb[i], si = sc[i], ayi = ay[i], byi = by[i];
+		float sij;
+		for (int j = 1; j < ny1; j++) {
+			if (Float.isNaN(tbi[j])) {
+				sij = si[j];
+				a[j] = -ayi[j];
+				c[j] = -byi[j];
+				b[j] = sij - a[j] - c[j];
+				d[j] = sij * ti[j];
+			} else {
+				a[j] = c[j] = 0;
+				b[j] = 1;
+				d[j] = tbi[j];
+			}
+		}
+		setBoundaryRow(a, b, c, d, Boundary.UPPER, 0, i, gridY.getSpacing(0) / ki[0], ti[0]);
+		setBoundaryRow(a, b, c, d, Boundary.LOWER, ny1, i, gridY.getSpacing(ny2) / ki[ny1], ti[ny1]);
+		Tdma.solve(a, b, c, d, x, ny);
+		for (int j = 1; j < ny1; j++)
+			ti[j] = MathUtil.flushTiny(x[j]);
+	}
+
+	// the equation of the border cell k of a line, whose current temperature is tk, which solves the condition of applyBoundary() together with the line
+	private void setBoundaryRow(float[] a, float[] b, float[] c, float[] d, byte side, int k, int index, float h, float tk) {
+		a[k] = c[k] = 0;
+		b[k] = 1;
+		if (boundary instanceof DirichletThermalBoundary) {
+			d[k] = ((DirichletThermalBoundary) boundary).getTemperatureAtBorder(side);
+		} else if (boundary instanceof ComplexDirichletThermalBoundary) {
+			d[k] = ((ComplexDirichletThermalBoundary) boundary).getTemperaturesAtBorder(side)[index];
+		} else if (boundary instanceof NeumannThermalBoundary) {
+			float f = ((NeumannThermalBoundary) boundary).getFluxAtBorder(side) * h;
+			switch (side) {
+			case Boundary.LEFT: // t[0] = t[1] - f
+				c[k] = -1;
+				d[k] = -f;
+				break;
+			case Boundary.RIGHT: // t[n-1] = t[n-2] + f
+				a[k] = -1;
+				d[k] = f;
+				break;
+			case Boundary.UPPER: // t[0] = t[1] + f
+				c[k] = -1;
+				d[k] = f;
+				break;
+			case Boundary.LOWER: // t[n-1] = t[n-2] - f
+				a[k] = -1;
+				d[k] = -f;
+				break;
+			}
+		} else {
+			// unknown boundary type: keep the current temperature and let applyBoundary() decide
+			d[k] = tk;
+		}
+	}
+
+}
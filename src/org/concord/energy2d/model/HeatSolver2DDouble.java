@@ -0,0 +1,237 @@
+/*
+ *   Copyright (C) 2009  The Concord Consortium, Inc.,
+ *   25 Love Lane, Concord, MA 01742
+ */
+
+package org.concord.energy2d.model;
+
+import org.concord.energy2d.math.MathUtil;
+import org.concord.energy2d.util.MiscUtil;
+
+/**
+ * The Gauss-Seidel solver of HeatSolver2DImpl with the temperature kept in double precision, taking over any cell whose float has been changed by something else.
+ */
+class HeatSolver2DDouble extends HeatSolver2D {
+
+	private double[][] temperature, temperature0, diagonalInverse;
+
+	HeatSolver2DDouble(int nx, int ny) {
+		super(nx, ny);
+		temperature = new double[nx][ny];
+		temperature0 = new double[nx][ny];
+		diagonalInverse = new double[nx][ny];
+	}
+
+	void solve(boolean convective, float[][] t) {
+
+		takeChanges(t);
+		MiscUtil.copy(t0, t);
+		for (int i = 0; i < nx; i++)
+			System.arraycopy(temperature[i], 0, temperature0[i], 0, ny);
+
+		if (updateCoefficients()) {
+			for (int i = 1; i < nx1; i++) {
+				for (int j = 1; j < ny1; j++)
+					diagonalInverse[i][j] = 1.0 / ((double) sc[i][j] + ax[i][j] + bx[i][j] + ay[i][j] + by[i][j]);
+			}
+		}
+		updateMasks();
+		setFixedTemperatures();
+
+		boolean solveZ = zHeatDiffusivity > 0;
+		boolean zCorrected;
+		int k = 0;
+		boolean measured;
+		double change;
+		do {
+			k++;
+			measured = convergence.isMeasured(k);
+			zCorrected = solveZ && k == convergence.getMaxSteps();
+			change = 0;
+			for (int i = 1; i < nx1; i++)
+				change = Math.max(change, relax(i, measured, zCorrected));
+			applyBoundary(temperature);
+		} while (!convergence.isDone(k, (float) change));
+
+		// the relaxation converged before its last step, which would have applied the proportional control
+		if (solveZ && !zCorrected) {
+			correctZ();
+			applyBoundary(temperature);
+		}
+
+		if (convective) {
+			if (advectionScheme == Model2D.ADVECTION_SEMI_LAGRANGIAN)
+				semiLagrangian();
+			else
+				macCormack();
+		}
+
+		for (int i = 0; i < nx; i++) {
+			double[] ti = temperature[i];
+			float[] fi = t[i];
+			for (int j = 0; j < ny; j++)
+				fi[j] = (float) ti[j];
+		}
+
+	}
+
+	// advect(t) on the doubles, with the float velocity
+	private void semiLagrangian() {
+		for (int i = 0; i < nx; i++)
+			System.arraycopy(temperature[i], 0, temperature0[i], 0, ny);
+		SemiLagrangian2D.advect(temperature0, temperature, u, v, timeStep / deltaX, timeStep / deltaY, fluidity, fluidCells, 1, nx1);
+		applyBoundary(temperature);
+	}
+
+	// the predictor goes to temperature0, which still holds the temperature of the last step in the cells that are not advected, as t0 does for the float solver
+	private void macCormack() {
+		double tx = 0.5 * timeStep / deltaX;
+		double ty = 0.5 * timeStep / deltaY;
+		double[] tm, ti, tp, pm, pi, pp;
+		float[] um, up, ui, vi;
+		int[] r;
+		for (int i = 1; i < nx1; i++) {
+			tm = temperature[i - 1];
+			ti = temperature[i];
+			tp = temperature[i + 1];
+			pi = temperature0[i];
+			um = u[i - 1];
+			up = u[i + 1];
+			vi = v[i];
+			r = fluidCells.runs[i];
+			for (int k = 0; k < fluidCells.length[i]; k += 2) {
+				for (int j = r[k]; j < r[k + 1]; j++)
+					pi[j] = ti[j] - tx * (up[j] * tp[j] - um[j] * tm[j]) - ty * (vi[j + 1] * ti[j + 1] - vi[j - 1] * ti[j - 1]);
+			}
+		}
+		applyBoundary(temperature0);
+		for (int i = 1; i < nx1; i++) {
+			ti = temperature[i];
+			pm = temperature0[i - 1];
+			pi = temperature0[i];
+			pp = temperature0[i + 1];
+			ui = u[i];
+			vi = v[i];
+			r = fluidCells.runs[i];
+			for (int k = 0; k < fluidCells.length[i]; k += 2) {
+				for (int j = r[k]; j < r[k + 1]; j++)
+					ti[j] = 0.5 * (ti[j] + pi[j]) - 0.5 * tx * ui[j] * (pp[j] - pm[j]) - 0.5 * ty * vi[j] * (pi[j + 1] - pi[j - 1]);
+			}
+		}
+		applyBoundary(temperature);
+	}
+
+	// a cell whose float does not round from its double has been changed by something else since the last step, such as a part that has been moved
+	private void takeChanges(float[][] t) {
+		for (int i = 0; i < nx; i++) {
+			double[] ti = temperature[i];
+			float[] fi = t[i];
+			for (int j = 0; j < ny; j++) {
+				if ((float) ti[j] != fi[j])
+					ti[j] = fi[j];
+			}
+		}
+	}
+
+	private void setFixedTemperatures() {
+		int[] r;
+		double[] ti;
+		float[] tbi;
+		for (int i = 1; i < nx1; i++) {
+			r = fixedCells.runs[i];
+			ti = temperature[i];
+			tbi = tb[i];
+			for (int k = 0; k < fixedCells.length[i]; k += 2) {
+				for (int j = r[k]; j < r[k + 1]; j++)
+					ti[j] = tbi[j];
+			}
+		}
+	}
+
+	// relax the free cells of column i, returning the largest change if it is measured
+	private double relax(int i, boolean measured, boolean zCorrected) {
+		double[] tm = temperature[i - 1], ti = temperature[i], tp = temperature[i + 1], t0i = temperature0[i];
+		float[] qi = q[i], si = sc[i], axi = ax[i], bxi = bx[i], ayi = ay[i], byi = by[i];
+		double[] dinvi = diagonalInverse[i];
+		int[] r = freeCells.runs[i];
+		double x, d, prev, change = 0;
+		for (int n = 0; n < freeCells.length[i]; n += 2) {
+			prev = ti[r[n] - 1];
+			for (int j = r[n]; j < r[n + 1]; j++) {
+				x = (t0i[j] * si[j] + qi[j] + axi[j] * tm[j] + bxi[j] * tp[j] + ayi[j] * prev + byi[j] * ti[j + 1]) * dinvi[j];
+				if (Math.abs(x) < MathUtil.TINY)
+					x = 0;
+				if (measured) {
+					d = Math.abs(x - ti[j]);
+					if (d > change)
+						change = d;
+				}
+				ti[j] = x;
+				if (zCorrected)
+					ti[j] -= zHeatDiffusivity * timeStep * (t0i[j] - backgroundTemperature);
+				prev = ti[j];
+			}
+		}
+		return change;
+	}
+
+	private void correctZ() {
+		double z = zHeatDiffusivity * timeStep;
+		int[] r;
+		for (int i = 1; i < nx1; i++) {
+			r = freeCells.runs[i];
+			for (int k = 0; k < freeCells.length[i]; k += 2) {
+				for (int j = r[k]; j < r[k + 1]; j++)
+					temperature[i][j] -= z * (temperature0[i][j] - backgroundTemperature);
+			}
+		}
+	}
+
+	// applyBoundary(t) on the doubles
+	private void applyBoundary(double[][] t) {
+		if (boundary instanceof DirichletThermalBoundary) {
+			DirichletThermalBoundary b = (DirichletThermalBoundary) boundary;
+			float tUpper = b.getTemperatureAtBorder(Boundary.UPPER);
+			float tLower = b.getTemperatureAtBorder(Boundary.LOWER);
+			float tLeft = b.getTemperatureAtBorder(Boundary.LEFT);
+			float tRight = b.getTemperatureAtBorder(Boundary.RIGHT);
+			for (int i = 0; i < nx; i++) {
+				t[i][0] = tUpper;
+				t[i][ny1] = tLower;
+			}
+			for (int j = 0; j < ny; j++) {
+				t[0][j] = tLeft;
+				t[nx1][j] = tRight;
+			}
+		} else if (boundary instanceof ComplexDirichletThermalBoundary) {
+			ComplexDirichletThermalBoundary b = (ComplexDirichletThermalBoundary) boundary;
+			float[] tUpper = b.getTemperaturesAtBorder(Boundary.UPPER);
+			float[] tLower = b.getTemperaturesAtBorder(Boundary.LOWER);
+			float[] tLeft = b.getTemperaturesAtBorder(Boundary.LEFT);
+			float[] tRight = b.getTemperaturesAtBorder(Boundary.RIGHT);
+			for (int i = 0; i < nx; i++) {
+				t[i][0] = tUpper[i];
+				t[i][ny1] = tLower[i];
+			}
+			for (int j = 0; j < ny; j++) {
+				t[0][j] = tLeft[j];
+				t[nx1][j] = tRight[j];
+			}
+		} else if (boundary instanceof NeumannThermalBoundary) {
+			NeumannThermalBoundary b = (NeumannThermalBoundary) boundary;
+			double fN = b.getFluxAtBorder(Boundary.UPPER) * gridY.getSpacing(0);
+			double fS = b.getFluxAtBorder(Boundary.LOWER) * gridY.getSpacing(ny2);
+			double fW = b.getFluxAtBorder(Boundary.LEFT) * gridX.getSpacing(0);
+			double fE = b.getFluxAtBorder(Boundary.RIGHT) * gridX.getSpacing(nx2);
+			for (int i = 0; i < nx; i++) {
+				t[i][0] = t[i][1] + fN / conductivity[i][0];
+				t[i][ny1] = t[i][ny2] - fS / conductivity[i][ny1];
+			}
+			for (int j = 0; j < ny; j++) {
+				t[0][j] = t[1][j] - fW / conductivity[0][j];
+				t[nx1][j] = t[nx2][j] + fE / conductivity[nx1][j];
+			}
+		}
+	}
+
+}
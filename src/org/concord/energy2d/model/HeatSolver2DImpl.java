@@ -5,6 +5,7 @@
 
 package org.concord.energy2d.model;
 
+import org.concord.energy2d.math.MathUtil;
 import org.concord.energy2d.util.MiscUtil;
 
 /**
@@ -13,46 +14,49 @@ import org.concord.energy2d.util.MiscUtil;
  */
 class HeatSolver2DImpl extends HeatSolver2D {
 
-	// five relaxation steps are probably enough for most transient problems because there are numerous previous steps that
-	// can be considered as pre-relaxation steps, especially when changes are slow or small.
-	private static byte relaxationSteps = 5;
-
 	HeatSolver2DImpl(int nx, int ny) {
 		super(nx, ny);
 	}
 
-	void solve(boolean convective, float[][] t) {
+	void solve(boolean convective, final float[][] t) {
 
 		// Copying a two-dimensional array is very fast: it takes less than 1% compared with the time for the relaxation solver below. Considering this, I chose clarity instead of swapping the arrays.
 		MiscUtil.copy(t0, t);
 
-		float hx = 0.5f / (deltaX * deltaX);
-		float hy = 0.5f / (deltaY * deltaY);
-		float rij, sij, axij, bxij, ayij, byij;
-		float invTimeStep = 1f / timeStep;
+		updateCoefficients();
+		updateMasks();
+		setFixedTemperatures(t);
 
-		boolean solveZ = zHeatDiffusivity > 0;
+		final boolean solveZ = zHeatDiffusivity > 0;
+		boolean zCorrected;
 
-		for (int k = 0; k < relaxationSteps; k++) {
-			for (int i = 1; i < nx1; i++) {
-				for (int j = 1; j < ny1; j++) {
-					if (Float.isNaN(tb[i][j])) {
-						sij = specificHeat[i][j] * density[i][j] * invTimeStep;
-						rij = conductivity[i][j];
-						axij = hx * (rij + conductivity[i - 1][j]);
-						bxij = hx * (rij + conductivity[i + 1][j]);
-						ayij = hy * (rij + conductivity[i][j - 1]);
-						byij = hy * (rij + conductivity[i][j + 1]);
-						t[i][j] = (t0[i][j] * sij + q[i][j] + axij * t[i - 1][j] + bxij * t[i + 1][j] + ayij * t[i][j - 1] + byij * t[i][j + 1]) / (sij + axij + bxij + ayij + byij);
-						if (solveZ && k == relaxationSteps - 1) {
-							// use a simple proportional control only at the last step of relaxation
-							t[i][j] -= zHeatDiffusivity * timeStep * (t0[i][j] - backgroundTemperature);
-						}
-					} else {
-						t[i][j] = tb[i][j];
-					}
+		if (Wavefront.isFixed(convergence)) {
+			final int sweeps = convergence.getMaxSteps();
+			Wavefront.sweep(1, nx1, sweeps, new Wavefront.Column() {
+				public void run(int i, int sweep) {
+					relax(t, i, false, solveZ && sweep == sweeps);
+					applyBoundary(t, i);
 				}
-			}
+			});
+			zCorrected = solveZ;
+		} else {
+			int k = 0;
+			boolean measured;
+			float change;
+			do {
+				k++;
+				measured = convergence.isMeasured(k);
+				zCorrected = solveZ && k == convergence.getMaxSteps();
+				change = 0;
+				for (int i = 1; i < nx1; i++)
+					change = Math.max(change, relax(t, i, measured, zCorrected));
+				applyBoundary(t);
+			} while (!convergence.isDone(k, change));
+		}
+
+		// the relaxation converged before its last step, which would have applied the proportional control
+		if (solveZ && !zCorrected) {
+			correctZ(t);
 			applyBoundary(t);
 		}
 
@@ -62,35 +66,32 @@ class HeatSolver2DImpl extends HeatSolver2D {
 
 	}
 
-	private void advect(float[][] t) {
-		macCormack(t);
-	}
-
-	// MacCormack
-	private void macCormack(float[][] t) {
-
-		float tx = 0.5f * timeStep / deltaX;
-		float ty = 0.5f * timeStep / deltaY;
-		for (int i = 1; i < nx1; i++) {
-			for (int j = 1; j < ny1; j++) {
-				if (fluidity[i][j]) {
-					t0[i][j] = t[i][j] - tx * (u[i + 1][j] * t[i + 1][j] - u[i - 1][j] * t[i - 1][j]) - ty * (v[i][j + 1] * t[i][j + 1] - v[i][j - 1] * t[i][j - 1]);
+	// relax the free cells of column i, returning the largest change if it is measured
+	private float relax(float[][] t, int i, boolean measured, boolean zCorrected) {
+		// the rows of the stencil are fetched once per column, so the inner loop only indexes one-dimensional arrays
+		float[] tm = t[i - 1], ti = t[i], tp = t[i + 1], t0i = t0[i], qi = q[i];
+		float[] si = sc[i], axi = ax[i], bxi = bx[i], ayi = ay[i], byi = by[i], dinvi = dinv[i];
+		int[] r = freeCells.runs[i];
+		float x, d, prev, change = 0;
+		for (int n = 0; n < freeCells.length[i]; n += 2) {
+			// the cell above was written in the last iteration, so its value is carried over instead of being read back from the array
+			prev = ti[r[n] - 1];
+			for (int j = r[n]; j < r[n + 1]; j++) {
+				x = MathUtil.flushTiny((t0i[j] * si[j] + qi[j] + axi[j] * tm[j] + bxi[j] * tp[j] + ayi[j] * prev + byi[j] * ti[j + 1]) * dinvi[j]);
+				if (measured) {
+					d = Math.abs(x - ti[j]);
+					if (d > change)
+						change = d;
 				}
-			}
-		}
-
-		applyBoundary(t0);
-
-		for (int i = 1; i < nx1; i++) {
-			for (int j = 1; j < ny1; j++) {
-				if (fluidity[i][j]) {
-					t[i][j] = 0.5f * (t[i][j] + t0[i][j]) - 0.5f * tx * u[i][j] * (t0[i + 1][j] - t0[i - 1][j]) - 0.5f * ty * v[i][j] * (t0[i][j + 1] - t0[i][j - 1]);
+				ti[j] = x;
+				if (zCorrected) {
+					// use a simple proportional control only at the last step of relaxation
+					ti[j] -= zHeatDiffusivity * timeStep * (t0i[j] - backgroundTemperature);
 				}
+				prev = ti[j];
 			}
 		}
-
-		applyBoundary(t);
-
+		return change;
 	}
 
 }
\ No newline at end of file
@@ -5,6 +5,8 @@
 
 package org.concord.energy2d.model;
 
+import java.awt.Dimension;
+import java.awt.EventQueue;
 import java.awt.geom.Ellipse2D;
 import java.awt.geom.Rectangle2D;
 import java.beans.PropertyChangeEvent;
@@ -34,16 +36,33 @@ public class Model2D {
 	public final static byte BUOYANCY_AVERAGE_ALL = 0;
 	public final static byte BUOYANCY_AVERAGE_COLUMN = 1;
 
+	public final static byte HEAT_SOLVER_GAUSS_SEIDEL = 0;
+	public final static byte HEAT_SOLVER_ADI = 1;
+	public final static byte HEAT_SOLVER_DOUBLE_PRECISION = 2;
+
+	public final static byte FLUID_SOLVER_GAUSS_SEIDEL = 0;
+	public final static byte FLUID_SOLVER_RED_BLACK = 1;
+
+	public final static byte ADVECTION_MACCORMACK = 0;
+	public final static byte ADVECTION_SEMI_LAGRANGIAN = 1;
+
 	private int indexOfStep;
 	private float stopTime = -1;
 
+	// the sum of the steps taken, which is not a multiple of the time step if the time step varies
+	private double time;
+
+	// the time step set by the user, which the solvers use unless a policy adapts it to the flow
+	private float timeStep = 0.1f;
+	private TimeStepPolicy timeStepPolicy;
+
 	private float backgroundConductivity = 10 * Constants.AIR_THERMAL_CONDUCTIVITY;
 	private float backgroundSpecificHeat = Constants.AIR_SPECIFIC_HEAT;
 	private float backgroundDensity = Constants.AIR_DENSITY;
 	private float backgroundTemperature;
 
 	/*
-	 * temperature array. On Java 6, using a 1D array and then a convenience function I(i, j) =i + j x ny to find t(i, j) is about 12% faster than using a 2D array directly. Hence, using 1D array for 2D functions doesn't result in significant performance improvements (the JRE probably have already optimized this for us).
+	 * temperature array. On Java 6, using a 1D array and then a convenience function I(i, j) =i + j x ny to find t(i, j) is about 12% faster than using a 2D array directly. Hence, using 1D array for 2D functions doesn't result in significant performance improvements (the JRE probably have already optimized this for us). On Java 17, the 1D array is 5-10% slower than fetching the rows of the stencil once per column, as the solvers do.
 	 */
 	private float[][] t;
 
@@ -75,15 +94,25 @@ public class Model2D {
 	private boolean[][] fluidity;
 
 	private float maximumHeatCapacity = -1, minimumHeatCapacity = Float.MAX_VALUE;
+	private float maximumDiffusivity;
 
 	private List<Thermometer> thermometers;
 
 	private List<Part> parts;
 	private List<Photon> photons;
 
+	// the cells covered by each part, shared by the arrays that are derived from the parts
+	private PartRaster partRaster;
+	// the raster is used by one pass at a time, which does not hold the lock of the parts
+	private final Object rasterLock = new Object();
+	private boolean fractionalCoverage;
+
 	private RaySolver2D raySolver;
+	private SteadyStateSolver2D steadyStateSolver;
 	private FluidSolver2D fluidSolver;
 	private HeatSolver2D heatSolver;
+	private byte heatSolverType = HEAT_SOLVER_GAUSS_SEIDEL;
+	private byte fluidSolverType = FLUID_SOLVER_GAUSS_SEIDEL;
 
 	private boolean sunny;
 	private int photonEmissionInterval = 20;
@@ -100,8 +129,20 @@ public class Model2D {
 	private float deltaX = lx / nx;
 	private float deltaY = ly / ny;
 
+	// the columns and rows of the grid, and the relative widths of the columns and heights of the rows if the grid is stretched in that direction
+	private GridAxis gridX = new GridAxis(nx, lx);
+	private GridAxis gridY = new GridAxis(ny, ly);
+	private float[] columnWidths, rowHeights;
+
 	private boolean running;
 	private boolean notifyReset;
+
+	// a grid resolution requested while running, applied between two steps by the simulation thread
+	private volatile Dimension requestedResolution;
+	// a heat solver requested while running, applied between two steps
+	private volatile byte requestedHeatSolverType = -1;
+	// a fluid solver requested while running, applied between two steps
+	private volatile byte requestedFluidSolverType = -1;
 	private int viewUpdateInterval = 20;
 	private int measurementInterval = 100;
 
@@ -109,6 +150,9 @@ public class Model2D {
 	private boolean hasPartPower;
 	private boolean radiative;
 
+	// whether the photons could have left their energy in the power array since it was last refreshed
+	private boolean radiated;
+
 	// condition flags
 	private boolean convective = true;
 
@@ -118,6 +162,29 @@ public class Model2D {
 
 	public Model2D() {
 
+		allocateArrays();
+
+		init();
+
+		heatSolver = createHeatSolver(heatSolverType);
+		fluidSolver = createFluidSolver(fluidSolverType);
+
+		raySolver = new RaySolver2D(lx, ly);
+		raySolver.setPower(q);
+
+		setGridCellSize();
+
+		parts = Collections.synchronizedList(new ArrayList<Part>());
+		thermometers = Collections.synchronizedList(new ArrayList<Thermometer>());
+		photons = Collections.synchronizedList(new ArrayList<Photon>());
+
+		visualizationListeners = new ArrayList<VisualizationListener>();
+		propertyChangeListeners = new ArrayList<PropertyChangeListener>();
+		manipulationListeners = new ArrayList<ManipulationListener>();
+
+	}
+
+	private void allocateArrays() {
 		t = new float[nx][ny];
 		u = new float[nx][ny];
 		v = new float[nx][ny];
@@ -129,36 +196,229 @@ public class Model2D {
 		specificHeat = new float[nx][ny];
 		density = new float[nx][ny];
 		fluidity = new boolean[nx][ny];
+	}
 
-		init();
+	private FluidSolver2D createFluidSolver(byte type) {
+		FluidSolver2D s;
+		switch (type) {
+		case FLUID_SOLVER_RED_BLACK:
+			s = new FluidSolver2DRedBlack(nx, ny);
+			break;
+		default:
+			s = new FluidSolver2DImpl(nx, ny);
+		}
+		s.setFluidity(fluidity);
+		s.setTemperature(t);
+		s.setWindSpeed(uWind, vWind);
+		return s;
+	}
+
+	private HeatSolver2D createHeatSolver(byte type) {
+		HeatSolver2D s;
+		switch (type) {
+		case HEAT_SOLVER_ADI:
+			s = new HeatSolver2DAdi(nx, ny);
+			break;
+		case HEAT_SOLVER_DOUBLE_PRECISION:
+			s = new HeatSolver2DDouble(nx, ny);
+			break;
+		default:
+			s = new HeatSolver2DImpl(nx, ny);
+		}
+		s.setSpecificHeat(specificHeat);
+		s.setConductivity(conductivity);
+		s.setDensity(density);
+		s.setPower(q);
+		s.setVelocity(u, v);
+		s.setTemperatureBoundary(tb);
+		s.setFluidity(fluidity);
+		return s;
+	}
+
+	/** select the algorithm of the heat solver. If the model is running, the change is made between two steps by the simulation thread. */
+	public void setHeatSolverType(byte type) {
+		if (type < HEAT_SOLVER_GAUSS_SEIDEL || type > HEAT_SOLVER_DOUBLE_PRECISION)
+			throw new IllegalArgumentException("Unknown heat solver type: " + type);
+		if (running) {
+			requestedHeatSolverType = type;
+		} else {
+			switchHeatSolver(type);
+		}
+	}
 
-		heatSolver = new HeatSolver2DImpl(nx, ny);
-		heatSolver.setSpecificHeat(specificHeat);
-		heatSolver.setConductivity(conductivity);
-		heatSolver.setDensity(density);
-		heatSolver.setPower(q);
-		heatSolver.setVelocity(u, v);
-		heatSolver.setTemperatureBoundary(tb);
-		heatSolver.setFluidity(fluidity);
+	public byte getHeatSolverType() {
+		return requestedHeatSolverType >= 0 ? requestedHeatSolverType : heatSolverType;
+	}
 
-		fluidSolver = new FluidSolver2DImpl(nx, ny);
-		fluidSolver.setFluidity(fluidity);
-		fluidSolver.setTemperature(t);
-		fluidSolver.setWindSpeed(uWind, vWind);
+	private void switchHeatSolver(byte type) {
+		requestedHeatSolverType = -1;
+		if (type == heatSolverType)
+			return;
+		heatSolverType = type;
+		replaceHeatSolver(createHeatSolver(type));
+	}
 
-		raySolver = new RaySolver2D(lx, ly);
-		raySolver.setPower(q);
+	/** select the algorithm of the fluid solver. If the model is running, the change is made between two steps by the simulation thread. */
+	public void setFluidSolverType(byte type) {
+		if (type < FLUID_SOLVER_GAUSS_SEIDEL || type > FLUID_SOLVER_RED_BLACK)
+			throw new IllegalArgumentException("Unknown fluid solver type: " + type);
+		if (running) {
+			requestedFluidSolverType = type;
+		} else {
+			switchFluidSolver(type);
+		}
+	}
 
-		setGridCellSize();
+	public byte getFluidSolverType() {
+		return requestedFluidSolverType >= 0 ? requestedFluidSolverType : fluidSolverType;
+	}
 
-		parts = Collections.synchronizedList(new ArrayList<Part>());
-		thermometers = Collections.synchronizedList(new ArrayList<Thermometer>());
-		photons = Collections.synchronizedList(new ArrayList<Photon>());
+	private void switchFluidSolver(byte type) {
+		requestedFluidSolverType = -1;
+		if (type == fluidSolverType)
+			return;
+		fluidSolverType = type;
+		replaceFluidSolver(createFluidSolver(type));
+	}
+
+	// carry the settings of the current heat solver over to a new one
+	private void replaceHeatSolver(HeatSolver2D s) {
+		s.setBoundary(heatSolver.getBoundary());
+		s.setTimeStep(heatSolver.getTimeStep());
+		s.setGridCellSize(deltaX, deltaY);
+		s.setGrid(gridX, gridY);
+		s.backgroundTemperature = heatSolver.backgroundTemperature;
+		s.zHeatDiffusivity = heatSolver.zHeatDiffusivity;
+		s.setConvergence(heatSolver.getConvergence());
+		s.setAdvectionScheme(heatSolver.getAdvectionScheme());
+		heatSolver = s;
+	}
+
+	// carry the settings of the current fluid solver over to a new one
+	private void replaceFluidSolver(FluidSolver2D s) {
+		s.setBoundary(fluidSolver.getBoundary());
+		s.setTimeStep(fluidSolver.getTimeStep());
+		s.setGridCellSize(deltaX, deltaY);
+		s.setBackgroundViscosity(fluidSolver.getViscosity());
+		s.setThermalBuoyancy(fluidSolver.getThermalBuoyancy());
+		s.setBuoyancyApproximation(fluidSolver.getBuoyancyApproximation());
+		s.setProjectionTolerance(fluidSolver.getProjectionTolerance());
+		s.setViscousConvergence(fluidSolver.getViscousConvergence());
+		s.setProjectionConvergence(fluidSolver.getProjectionConvergence());
+		s.setStreamFunctionConvergence(fluidSolver.getStreamFunctionConvergence());
+		s.setAdvectionScheme(fluidSolver.getAdvectionScheme());
+		fluidSolver = s;
+	}
+
+	/** change the number of grid cells and resample the fields. If the model is running, the change is made between two steps by the simulation thread. */
+	public void setGridResolution(int nx, int ny) {
+		if (nx < 10 || ny < 10)
+			throw new IllegalArgumentException("The grid must have at least 10 cells in each direction.");
+		if (running) {
+			requestedResolution = new Dimension(nx, ny);
+		} else {
+			resize(nx, ny);
+		}
+	}
 
-		visualizationListeners = new ArrayList<VisualizationListener>();
-		propertyChangeListeners = new ArrayList<PropertyChangeListener>();
-		manipulationListeners = new ArrayList<ManipulationListener>();
+	private void resize(int nx, int ny) {
+		requestedResolution = null;
+		if (nx == this.nx && ny == this.ny)
+			return;
+		final Dimension oldResolution = new Dimension(this.nx, this.ny);
+		float[][] t1 = resample(t, nx, ny);
+		float[][] u1 = resample(u, nx, ny);
+		float[][] v1 = resample(v, nx, ny);
+		this.nx = nx;
+		this.ny = ny;
+		deltaX = lx / nx;
+		deltaY = ly / ny;
+		// the widths of a stretched grid are per column or row, so they cannot be carried over to another number of them
+		if (columnWidths != null && columnWidths.length != nx)
+			columnWidths = null;
+		if (rowHeights != null && rowHeights.length != ny)
+			rowHeights = null;
+		allocateArrays();
+		t = t1;
+		u = u1;
+		v = v1;
+		ThermalBoundary b = heatSolver.getBoundary();
+		if (b instanceof ComplexDirichletThermalBoundary)
+			heatSolver.setBoundary(resample((ComplexDirichletThermalBoundary) b, nx, ny));
+		replaceHeatSolver(createHeatSolver(heatSolverType));
+		replaceFluidSolver(createFluidSolver(fluidSolverType));
+		steadyStateSolver = null;
+		raySolver.setPower(q);
+		setGridCellSize();
+		refreshPowerArray();
+		refreshTemperatureBoundaryArray();
+		refreshMaterialPropertyArrays();
+		final Dimension newResolution = new Dimension(nx, ny);
+		// the view resizes its renderers when it is told, which must not happen while it is painting
+		if (EventQueue.isDispatchThread()) {
+			notifyPropertyChangeListeners("Grid resolution", oldResolution, newResolution);
+		} else {
+			EventQueue.invokeLater(new Runnable() {
+				public void run() {
+					notifyPropertyChangeListeners("Grid resolution", oldResolution, newResolution);
+				}
+			});
+		}
+	}
+
+	private void resizeIfRequested() {
+		Dimension d = requestedResolution;
+		if (d != null)
+			resize(d.width, d.height);
+	}
 
+	// bilinear interpolation of a field onto a grid of a different resolution that covers the same area
+	private static float[][] resample(float[][] f, int nx, int ny) {
+		int mx = f.length;
+		int my = f[0].length;
+		float[][] g = new float[nx][ny];
+		float sx = (float) mx / (float) nx;
+		float sy = (float) my / (float) ny;
+		float x, y, wx, wy;
+		int i0, j0, i1, j1;
+		for (int i = 0; i < nx; i++) {
+			x = Math.min(i * sx, mx - 1);
+			i0 = (int) x;
+			i1 = Math.min(i0 + 1, mx - 1);
+			wx = x - i0;
+			for (int j = 0; j < ny; j++) {
+				y = Math.min(j * sy, my - 1);
+				j0 = (int) y;
+				j1 = Math.min(j0 + 1, my - 1);
+				wy = y - j0;
+				g[i][j] = (1 - wx) * ((1 - wy) * f[i0][j0] + wy * f[i0][j1]) + wx * ((1 - wy) * f[i1][j0] + wy * f[i1][j1]);
+			}
+		}
+		return g;
+	}
+
+	private static ComplexDirichletThermalBoundary resample(ComplexDirichletThermalBoundary b, int nx, int ny) {
+		ComplexDirichletThermalBoundary c = new ComplexDirichletThermalBoundary(nx, ny);
+		c.setTemperaturesAtBorder(Boundary.UPPER, resample(b.getTemperaturesAtBorder(Boundary.UPPER), nx));
+		c.setTemperaturesAtBorder(Boundary.LOWER, resample(b.getTemperaturesAtBorder(Boundary.LOWER), nx));
+		c.setTemperaturesAtBorder(Boundary.LEFT, resample(b.getTemperaturesAtBorder(Boundary.LEFT), ny));
+		c.setTemperaturesAtBorder(Boundary.RIGHT, resample(b.getTemperaturesAtBorder(Boundary.RIGHT), ny));
+		return c;
+	}
+
+	private static float[] resample(float[] f, int n) {
+		int m = f.length;
+		float[] g = new float[n];
+		float s = (float) m / (float) n;
+		float x, w;
+		int i0;
+		for (int i = 0; i < n; i++) {
+			x = Math.min(i * s, m - 1);
+			i0 = (int) x;
+			w = x - i0;
+			g[i] = (1 - w) * f[i0] + w * f[Math.min(i0 + 1, m - 1)];
+		}
+		return g;
 	}
 
 	public int getNx() {
@@ -177,7 +437,10 @@ public class Model2D {
 		return stopTime;
 	}
 
+	/** convection needs a uniform grid, because the fluid solver and the advection use the mean cell size */
 	public void setConvective(boolean convective) {
+		if (convective && (columnWidths != null || rowHeights != null))
+			throw new IllegalStateException("Convection needs a uniform grid spacing.");
 		this.convective = convective;
 	}
 
@@ -212,6 +475,83 @@ public class Model2D {
 		return fluidSolver.getBuoyancyApproximation();
 	}
 
+	/** a positive tolerance solves the projection by multigrid to this fraction of the largest divergence, and zero keeps the relaxation steps */
+	public void setProjectionTolerance(float tolerance) {
+		fluidSolver.setProjectionTolerance(tolerance);
+	}
+
+	public float getProjectionTolerance() {
+		return fluidSolver.getProjectionTolerance();
+	}
+
+	/** the relaxation steps of the heat solver, which the ADI solver does not need */
+	public void setHeatConvergence(ConvergencePolicy convergence) {
+		heatSolver.setConvergence(convergence);
+	}
+
+	public ConvergencePolicy getHeatConvergence() {
+		return heatSolver.getConvergence();
+	}
+
+	/** the relaxation steps of the viscous diffusion of the velocity */
+	public void setViscousConvergence(ConvergencePolicy convergence) {
+		fluidSolver.setViscousConvergence(convergence);
+	}
+
+	public ConvergencePolicy getViscousConvergence() {
+		return fluidSolver.getViscousConvergence();
+	}
+
+	/** the relaxation steps of the pressure equation of the projection, when the projection tolerance does not select multigrid */
+	public void setProjectionConvergence(ConvergencePolicy convergence) {
+		fluidSolver.setProjectionConvergence(convergence);
+	}
+
+	public ConvergencePolicy getProjectionConvergence() {
+		return fluidSolver.getProjectionConvergence();
+	}
+
+	/** the multigrid cycles of the stream function: the tolerance is a fraction of the largest vorticity, and the maximum steps are the most cycles */
+	public void setStreamFunctionConvergence(ConvergencePolicy convergence) {
+		fluidSolver.setStreamFunctionConvergence(convergence);
+	}
+
+	public ConvergencePolicy getStreamFunctionConvergence() {
+		return fluidSolver.getStreamFunctionConvergence();
+	}
+
+	/** blend the thermal properties and the power of the cells on the edges of the parts by the fractions of the cells that they cover */
+	public void setFractionalCoverage(boolean fractionalCoverage) {
+		if (this.fractionalCoverage == fractionalCoverage)
+			return;
+		this.fractionalCoverage = fractionalCoverage;
+		refreshPowerArray();
+		refreshTemperatureBoundaryArray();
+		refreshMaterialPropertyArrays();
+	}
+
+	public boolean isFractionalCoverage() {
+		return fractionalCoverage;
+	}
+
+	/** the advection of the temperature: MacCormack, which is limited by the Courant number, or semi-Lagrangian, which is not */
+	public void setTemperatureAdvection(byte scheme) {
+		heatSolver.setAdvectionScheme(scheme);
+	}
+
+	public byte getTemperatureAdvection() {
+		return heatSolver.getAdvectionScheme();
+	}
+
+	/** the advection of the velocity: MacCormack, which is limited by the Courant number, or semi-Lagrangian, which is not */
+	public void setVelocityAdvection(byte scheme) {
+		fluidSolver.setAdvectionScheme(scheme);
+	}
+
+	public byte getVelocityAdvection() {
+		return fluidSolver.getAdvectionScheme();
+	}
+
 	public void setBackgroundViscosity(float viscosity) {
 		fluidSolver.setBackgroundViscosity(viscosity);
 	}
@@ -293,9 +633,51 @@ public class Model2D {
 	}
 
 	private void setGridCellSize() {
+		gridX = columnWidths == null ? new GridAxis(nx, lx) : new GridAxis(columnWidths, lx);
+		gridY = rowHeights == null ? new GridAxis(ny, ly) : new GridAxis(rowHeights, ly);
 		heatSolver.setGridCellSize(deltaX, deltaY);
+		heatSolver.setGrid(gridX, gridY);
 		fluidSolver.setGridCellSize(deltaX, deltaY);
-		raySolver.setGridCellSize(deltaX, deltaY);
+	}
+
+	/** stretch the grid by the relative widths of its columns and rows, where null keeps a direction uniform. Only conduction follows the widths, so a convective model cannot be stretched. */
+	public void setGridSpacing(float[] columnWidths, float[] rowHeights) {
+		if (convective && (columnWidths != null || rowHeights != null))
+			throw new IllegalArgumentException("A convective model needs a uniform grid spacing.");
+		if (columnWidths != null && columnWidths.length != nx)
+			throw new IllegalArgumentException("There must be a width for each of the " + nx + " columns.");
+		if (rowHeights != null && rowHeights.length != ny)
+			throw new IllegalArgumentException("There must be a height for each of the " + ny + " rows.");
+		// build the axes first, which rejects widths that are not positive before anything is changed
+		if (columnWidths != null)
+			new GridAxis(columnWidths, lx);
+		if (rowHeights != null)
+			new GridAxis(rowHeights, ly);
+		this.columnWidths = columnWidths == null ? null : columnWidths.clone();
+		this.rowHeights = rowHeights == null ? null : rowHeights.clone();
+		setGridCellSize();
+		steadyStateSolver = null;
+		refreshPowerArray();
+		refreshTemperatureBoundaryArray();
+		refreshMaterialPropertyArrays();
+	}
+
+	/** the relative widths of the columns, or null if the grid is uniform in x */
+	public float[] getColumnWidths() {
+		return columnWidths == null ? null : columnWidths.clone();
+	}
+
+	/** the relative heights of the rows, or null if the grid is uniform in y */
+	public float[] getRowHeights() {
+		return rowHeights == null ? null : rowHeights.clone();
+	}
+
+	GridAxis getGridX() {
+		return gridX;
+	}
+
+	GridAxis getGridY() {
+		return gridY;
 	}
 
 	public void setLx(float lx) {
@@ -414,6 +796,7 @@ public class Model2D {
 	/** Since the sensor data are erased, the index of step (and hence the clock) is also reset. */
 	public void clearSensorData() {
 		indexOfStep = 0;
+		time = 0;
 		if (thermometers == null || thermometers.isEmpty())
 			return;
 		synchronized (thermometers) {
@@ -527,44 +910,87 @@ public class Model2D {
 		return minimumHeatCapacity;
 	}
 
+	// a copy of the parts for a pass over the grid, so that the pass does not hold the lock of the list
+	private Part[] getPartSnapshot() {
+		synchronized (parts) {
+			return parts.toArray(new Part[parts.size()]);
+		}
+	}
+
+	// the raster of the parts on the current grid, brought up to date with the parts that have been added, removed or reshaped since; the caller holds the lock of the raster
+	private PartRaster getPartRaster(Part[] snapshot) {
+		if (partRaster == null || !partRaster.isOn(gridX, gridY) || partRaster.hasCoverage() != fractionalCoverage)
+			partRaster = new PartRaster(gridX, gridY, fractionalCoverage);
+		partRaster.update(snapshot);
+		return partRaster;
+	}
+
+	/** refresh the arrays of the material properties and the wind in the cells that have changed since the last refresh */
 	public void refreshMaterialPropertyArrays() {
-		float x, y, windSpeed;
 		boolean initial = indexOfStep == 0;
-		maximumHeatCapacity = minimumHeatCapacity = backgroundDensity * backgroundSpecificHeat;
-		float heatCapacity = 0;
-		for (int i = 0; i < nx; i++) {
-			x = i * deltaX;
-			for (int j = 0; j < ny; j++) {
-				y = j * deltaY;
-				conductivity[i][j] = backgroundConductivity;
-				specificHeat[i][j] = backgroundSpecificHeat;
-				density[i][j] = backgroundDensity;
-				fluidity[i][j] = true;
-				uWind[i][j] = vWind[i][j] = 0;
-				synchronized (parts) {
-					for (Part p : parts) {
-						if (p.getShape().contains(x, y)) {
-							// no overlap of parts will be allowed
-							conductivity[i][j] = p.getThermalConductivity();
-							specificHeat[i][j] = p.getSpecificHeat();
-							density[i][j] = p.getDensity();
-							if (!initial && p.getConstantTemperature())
-								t[i][j] = p.getTemperature();
-							fluidity[i][j] = false;
-							if ((windSpeed = p.getWindSpeed()) != 0) {
-								uWind[i][j] = (float) (windSpeed * Math.cos(p.getWindAngle()));
-								vWind[i][j] = (float) (windSpeed * Math.sin(p.getWindAngle()));
-							}
-							break;
+		Part[] snapshot = getPartSnapshot();
+		int[] box;
+		synchronized (rasterLock) {
+			PartRaster raster = getPartRaster(snapshot);
+			int n = snapshot.length;
+			Part p;
+			for (int k = 0; k < n; k++) {
+				p = snapshot[k];
+				raster.compare(PartRaster.MATERIAL, k, p.getThermalConductivity(), p.getSpecificHeat(), p.getDensity(), p.getWindSpeed(), p.getWindAngle());
+			}
+			raster.compare(PartRaster.MATERIAL, n, backgroundConductivity, backgroundSpecificHeat, backgroundDensity);
+			box = raster.takeDirty(PartRaster.MATERIAL);
+			short[] label = raster.label;
+			float windSpeed;
+			for (int i = box[0]; i < box[2]; i++) {
+				for (int j = box[1]; j < box[3]; j++) {
+					p = raster.getPart(label[i * ny + j]);
+					if (p == null) {
+						conductivity[i][j] = backgroundConductivity;
+						specificHeat[i][j] = backgroundSpecificHeat;
+						density[i][j] = backgroundDensity;
+						fluidity[i][j] = true;
+						uWind[i][j] = vWind[i][j] = 0;
+					} else {
+						// no overlap of parts will be allowed
+						conductivity[i][j] = p.getThermalConductivity();
+						specificHeat[i][j] = p.getSpecificHeat();
+						density[i][j] = p.getDensity();
+						fluidity[i][j] = false;
+						if ((windSpeed = p.getWindSpeed()) != 0) {
+							uWind[i][j] = (float) (windSpeed * Math.cos(p.getWindAngle()));
+							vWind[i][j] = (float) (windSpeed * Math.sin(p.getWindAngle()));
+						} else {
+							uWind[i][j] = vWind[i][j] = 0;
 						}
 					}
 				}
-				heatCapacity = specificHeat[i][j] * density[i][j];
-				if (maximumHeatCapacity < heatCapacity)
-					maximumHeatCapacity = heatCapacity;
-				if (minimumHeatCapacity > heatCapacity)
-					minimumHeatCapacity = heatCapacity;
 			}
+			if (fractionalCoverage)
+				blendMaterialProperties(raster, box);
+			if (!initial) {
+				int[] grid = raster.getGrid();
+				for (int k = 0; k < n; k++) {
+					if (snapshot[k].getConstantTemperature())
+						raster.fill(t, k, true, grid, snapshot[k].getTemperature());
+				}
+			}
+			// the extremes over the cells are those of the background and the parts that have cells
+			maximumHeatCapacity = minimumHeatCapacity = backgroundDensity * backgroundSpecificHeat;
+			maximumDiffusivity = 0;
+			if (raster.hasArea(-1))
+				checkMaterial(backgroundConductivity, backgroundSpecificHeat, backgroundDensity);
+			for (int k = 0; k < n; k++) {
+				if (raster.hasArea(k)) {
+					p = snapshot[k];
+					checkMaterial(p.getThermalConductivity(), p.getSpecificHeat(), p.getDensity());
+				}
+			}
+		}
+		if (!PartRaster.isEmpty(box)) {
+			heatSolver.invalidateCoefficients();
+			heatSolver.invalidateMasks();
+			fluidSolver.invalidateMasks();
 		}
 		if (initial) {
 			setInitialTemperature();
@@ -572,63 +998,119 @@ public class Model2D {
 		}
 	}
 
+	// blend the properties of a shared cell: harmonic mean of conductivity, arithmetic means of density and heat capacity
+	private void blendMaterialProperties(PartRaster raster, int[] box) {
+		final int i0 = box[0], j0 = box[1], j1 = box[3], m = box[3] - box[1];
+		int size = (box[2] - box[0]) * m;
+		if (size <= 0)
+			return;
+		final double[] resistance = new double[size], mass = new double[size], capacity = new double[size];
+		raster.cover(box, new PartRaster.Coverage() {
+			public void add(int i, int j, Part part, float fraction) {
+				int c = (i - i0) * m + j - j0;
+				float k = part == null ? backgroundConductivity : part.getThermalConductivity();
+				float rho = part == null ? backgroundDensity : part.getDensity();
+				float cp = part == null ? backgroundSpecificHeat : part.getSpecificHeat();
+				resistance[c] += fraction / (double) k;
+				mass[c] += fraction * (double) rho;
+				capacity[c] += fraction * (double) rho * cp;
+			}
+		});
+		int c;
+		for (int i = i0; i < box[2]; i++) {
+			for (int j = j0; j < j1; j++) {
+				c = (i - i0) * m + j - j0;
+				conductivity[i][j] = (float) (1 / resistance[c]);
+				density[i][j] = (float) mass[c];
+				specificHeat[i][j] = (float) (capacity[c] / mass[c]);
+			}
+		}
+	}
+
+	private void checkMaterial(float conductivity, float specificHeat, float density) {
+		float heatCapacity = specificHeat * density;
+		if (maximumHeatCapacity < heatCapacity)
+			maximumHeatCapacity = heatCapacity;
+		if (minimumHeatCapacity > heatCapacity)
+			minimumHeatCapacity = heatCapacity;
+		if (maximumDiffusivity * heatCapacity < conductivity)
+			maximumDiffusivity = conductivity / heatCapacity;
+	}
+
+	/** Refresh the power array from the parts, only on the cells that have changed since the last refresh, unless the model is radiative. */
 	public void refreshPowerArray() {
 		checkPartPower();
-		float x, y;
-		for (int i = 0; i < nx; i++) {
-			x = i * deltaX;
-			for (int j = 0; j < ny; j++) {
-				y = j * deltaY;
-				q[i][j] = 0;
-				if (hasPartPower) {
-					synchronized (parts) {
-						for (Part p : parts) {
-							if (p.getPower() != 0 && p.getShape().contains(x, y)) {
-								// no overlap of parts will be allowed
-								q[i][j] = p.getPower();
-								break;
-							}
-						}
-					}
+		Part[] snapshot = getPartSnapshot();
+		synchronized (rasterLock) {
+			PartRaster raster = getPartRaster(snapshot);
+			for (int k = 0; k < snapshot.length; k++)
+				raster.compare(PartRaster.POWER, k, snapshot[k].getPower());
+			// the photons leave their energy anywhere in the array until the next refresh clears it
+			if (radiative || radiated)
+				raster.invalidate(PartRaster.POWER);
+			radiated = radiative;
+			int[] box = raster.takeDirty(PartRaster.POWER);
+			for (int i = box[0]; i < box[2]; i++)
+				Arrays.fill(q[i], box[1], box[3], 0);
+			if (hasPartPower && !fractionalCoverage) {
+				// the parts are painted in reverse order, so the first part with power wins where parts overlap
+				for (int k = snapshot.length - 1; k >= 0; k--) {
+					if (snapshot[k].getPower() != 0 && raster.intersects(k, box))
+						raster.fill(q, k, false, box, snapshot[k].getPower());
 				}
 			}
+			if (hasPartPower && fractionalCoverage) {
+				raster.cover(box, new PartRaster.Coverage() {
+					public void add(int i, int j, Part part, float fraction) {
+						if (part != null)
+							q[i][j] += fraction * part.getPower();
+					}
+				});
+			}
 		}
 	}
 
+	/** Refresh the array of the fixed temperatures from the parts, only on the cells that have changed since the last refresh. */
 	public void refreshTemperatureBoundaryArray() {
-		float x, y;
-		for (int i = 0; i < nx; i++) {
-			x = i * deltaX;
-			for (int j = 0; j < ny; j++) {
-				y = j * deltaY;
-				tb[i][j] = Float.NaN;
-				synchronized (parts) {
-					for (Part p : parts) {
-						if (p.getConstantTemperature() && p.getShape().contains(x, y)) {
-							tb[i][j] = p.getTemperature();
-							break;
-						}
-					}
-				}
+		Part[] snapshot = getPartSnapshot();
+		int[] box;
+		synchronized (rasterLock) {
+			PartRaster raster = getPartRaster(snapshot);
+			Part p;
+			for (int k = 0; k < snapshot.length; k++) {
+				p = snapshot[k];
+				raster.compare(PartRaster.BOUNDARY, k, p.getConstantTemperature() ? p.getTemperature() : Float.NaN);
+			}
+			box = raster.takeDirty(PartRaster.BOUNDARY);
+			for (int i = box[0]; i < box[2]; i++)
+				Arrays.fill(tb[i], box[1], box[3], Float.NaN);
+			// the first part of a constant temperature wins where parts overlap
+			for (int k = snapshot.length - 1; k >= 0; k--) {
+				if (snapshot[k].getConstantTemperature() && raster.intersects(k, box))
+					raster.fill(tb, k, false, box, snapshot[k].getTemperature());
 			}
 		}
+		if (!PartRaster.isEmpty(box))
+			heatSolver.invalidateMasks();
 	}
 
 	/** get the total thermal energy stored in this part */
 	public float getThermalEnergy(Part p) {
 		float x, y;
-		float energy = 0;
+		// a sum over many cells loses the small terms in float
+		double energy = 0;
+		float[] wx = gridX.getWidth(), wy = gridY.getWidth();
 		for (int i = 0; i < nx; i++) {
-			x = i * deltaX;
+			x = gridX.getPosition(i);
 			for (int j = 0; j < ny; j++) {
-				y = j * deltaY;
+				y = gridY.getPosition(j);
 				if (p.getShape().contains(x, y)) {
 					// no overlap of parts will be allowed
-					energy += t[i][j] * density[i][j] * specificHeat[i][j];
+					energy += t[i][j] * density[i][j] * specificHeat[i][j] * wx[i] * wy[j];
 				}
 			}
 		}
-		return energy * deltaX * deltaY;
+		return (float) energy;
 	}
 
 	private void init() {
@@ -659,6 +1141,7 @@ public class Model2D {
 				}
 			}
 		}
+		fluidSolver.velocityChanged(u, v);
 	}
 
 	public void setInitialTemperature() {
@@ -669,25 +1152,16 @@ public class Model2D {
 				}
 			}
 		} else {
-			float x, y;
-			boolean found = false;
-			for (int i = 0; i < nx; i++) {
-				x = i * deltaX;
-				for (int j = 0; j < ny; j++) {
-					y = j * deltaY;
-					found = false;
-					synchronized (parts) {
-						for (Part p : parts) {
-							if (p.getShape().contains(x, y)) {
-								// no overlap of parts will be allowed
-								t[i][j] = p.getTemperature();
-								found = true;
-								break;
-							}
-						}
+			Part[] snapshot = getPartSnapshot();
+			synchronized (rasterLock) {
+				PartRaster raster = getPartRaster(snapshot);
+				short[] label = raster.label;
+				Part p;
+				for (int i = 0; i < nx; i++) {
+					for (int j = 0; j < ny; j++) {
+						p = raster.getPart(label[i * ny + j]);
+						t[i][j] = p == null ? backgroundTemperature : p.getTemperature();
 					}
-					if (!found)
-						t[i][j] = backgroundTemperature;
 				}
 			}
 		}
@@ -702,8 +1176,14 @@ public class Model2D {
 			running = true;
 			while (running)
 				nextStep();
+			resizeIfRequested();
+			if (requestedHeatSolverType >= 0)
+				switchHeatSolver(requestedHeatSolverType);
+			if (requestedFluidSolverType >= 0)
+				switchFluidSolver(requestedFluidSolverType);
 			if (notifyReset) {
 				indexOfStep = 0;
+				time = 0;
 				reallyReset();
 				notifyVisualizationListeners();
 				notifyReset = false;
@@ -724,6 +1204,7 @@ public class Model2D {
 		}
 		running = false;
 		indexOfStep = 0;
+		time = 0;
 	}
 
 	private void reallyReset() {
@@ -761,14 +1242,25 @@ public class Model2D {
 	}
 
 	private void nextStep() {
+		resizeIfRequested();
+		if (requestedHeatSolverType >= 0) {
+			switchHeatSolver(requestedHeatSolverType);
+		}
+		if (requestedFluidSolverType >= 0) {
+			switchFluidSolver(requestedFluidSolverType);
+		}
 		if (stopTime > 0) {
 			if (indexOfStep > 0) {
-				if (indexOfStep % Math.round(stopTime / getTimeStep()) == 0) {
+				// stop at the step that is the nearest to a multiple of the stop time
+				float half = 0.5f * heatSolver.getTimeStep();
+				if (Math.floor((time + half) / stopTime) > Math.floor((time - half) / stopTime)) {
 					stop();
 					notifyManipulationListeners(ManipulationEvent.AUTO_STOP);
 				}
 			}
 		}
+		if (timeStepPolicy != null)
+			adaptTimeStep();
 		if (radiative) {
 			if (indexOfStep % photonEmissionInterval == 0) {
 				refreshPowerArray();
@@ -789,6 +1281,28 @@ public class Model2D {
 			notifyVisualizationListeners();
 		}
 		indexOfStep++;
+		time += heatSolver.getTimeStep();
+	}
+
+	// the time step only changes between two steps, so the heat and fluid solvers always share it
+	private void adaptTimeStep() {
+		float speed = 0;
+		if (convective) {
+			for (int i = 0; i < nx; i++) {
+				for (int j = 0; j < ny; j++) {
+					if (speed < Math.abs(u[i][j]))
+						speed = Math.abs(u[i][j]);
+					if (speed < Math.abs(v[i][j]))
+						speed = Math.abs(v[i][j]);
+				}
+			}
+		}
+		float current = heatSolver.getTimeStep();
+		float next = timeStepPolicy.getTimeStep(current, speed, maximumDiffusivity, Math.min(gridX.getMinimumWidth(), gridY.getMinimumWidth()));
+		if (next != current) {
+			heatSolver.setTimeStep(next);
+			fluidSolver.setTimeStep(next);
+		}
 	}
 
 	public void setViewUpdateInterval(int viewUpdateInterval) {
@@ -808,48 +1322,68 @@ public class Model2D {
 	}
 
 	public float getTime() {
-		return indexOfStep * heatSolver.getTimeStep();
+		return (float) time;
 	}
 
+	/** the time step set by the user, which is where an adaptive time step starts from */
 	public void setTimeStep(float timeStep) {
 		notifyPropertyChangeListeners("Time step", getTimeStep(), timeStep);
+		this.timeStep = timeStep;
 		heatSolver.setTimeStep(timeStep);
 		fluidSolver.setTimeStep(timeStep);
 	}
 
 	public float getTimeStep() {
+		return timeStep;
+	}
+
+	/** the time step of the next step, which differs from the one set by the user if a policy adapts it */
+	public float getCurrentTimeStep() {
 		return heatSolver.getTimeStep();
 	}
 
+	/** adapt the time step to the speed of the flow and the diffusivity before each step. Null goes back to the time step set by the user. */
+	public void setTimeStepPolicy(TimeStepPolicy policy) {
+		timeStepPolicy = policy;
+		if (policy == null) {
+			heatSolver.setTimeStep(timeStep);
+			fluidSolver.setTimeStep(timeStep);
+		}
+	}
+
+	public TimeStepPolicy getTimeStepPolicy() {
+		return timeStepPolicy;
+	}
+
 	public void setTemperature(float[][] t) {
 		this.t = t;
 	}
 
 	public float getTemperatureAt(float x, float y) {
-		int i = Math.min(t.length - 1, Math.round(x / deltaX));
+		int i = Math.min(t.length - 1, gridX.getIndex(x));
 		if (i < 0)
 			i = 0;
-		int j = Math.min(t[0].length - 1, Math.round(y / deltaY));
+		int j = Math.min(t[0].length - 1, gridY.getIndex(y));
 		if (j < 0)
 			j = 0;
 		return t[i][j];
 	}
 
 	public void setTemperatureAt(float x, float y, float temperature) {
-		int i = Math.min(t.length - 1, Math.round(x / deltaX));
+		int i = Math.min(t.length - 1, gridX.getIndex(x));
 		if (i < 0)
 			return;
-		int j = Math.min(t[0].length - 1, Math.round(y / deltaY));
+		int j = Math.min(t[0].length - 1, gridY.getIndex(y));
 		if (j < 0)
 			return;
 		t[i][j] = temperature;
 	}
 
 	public void changeTemperatureAt(float x, float y, float increment) {
-		int i = Math.min(t.length - 1, Math.round(x / deltaX));
+		int i = Math.min(t.length - 1, gridX.getIndex(x));
 		if (i < 0)
 			return;
-		int j = Math.min(t[0].length - 1, Math.round(y / deltaY));
+		int j = Math.min(t[0].length - 1, gridY.getIndex(y));
 		if (j < 0)
 			return;
 		t[i][j] += increment;
@@ -857,8 +1391,8 @@ public class Model2D {
 
 	float getAverageTemperatureAt(float x, float y) {
 		float temp = 0;
-		int i0 = Math.round(x / deltaX);
-		int j0 = Math.round(y / deltaY);
+		int i0 = gridX.getIndex(x);
+		int j0 = gridY.getIndex(y);
 		int i = Math.min(t.length - 1, i0);
 		int j = Math.min(t[0].length - 1, j0);
 		if (i < 0)
@@ -899,8 +1433,8 @@ public class Model2D {
 
 	void changeAverageTemperatureAt(float x, float y, float increment) {
 		increment *= 0.2f;
-		int i0 = Math.round(x / deltaX);
-		int j0 = Math.round(y / deltaY);
+		int i0 = gridX.getIndex(x);
+		int j0 = gridY.getIndex(y);
 		int i = Math.min(t.length - 1, i0);
 		int j = Math.min(t[0].length - 1, j0);
 		if (i >= 0 && j >= 0)
@@ -927,6 +1461,24 @@ public class Model2D {
 		return t;
 	}
 
+	/**
+	 * Jump to the equilibrium of heat conduction without convection in one call. It cannot be called while the model is running.
+	 *
+	 * @return the temperature field, or null, leaving it unchanged, if nothing holds the temperature or the solver did not converge
+	 */
+	public float[][] solveSteadyState() {
+		if (running)
+			throw new IllegalStateException("Cannot solve for the steady state while the model is running.");
+		checkPartPower();
+		refreshPowerArray();
+		if (steadyStateSolver == null)
+			steadyStateSolver = new SteadyStateSolver2D(nx, ny);
+		if (!steadyStateSolver.solve(heatSolver, t))
+			return null;
+		notifyVisualizationListeners();
+		return t;
+	}
+
 	public float[][] getXVelocity() {
 		return u;
 	}
@@ -935,8 +1487,9 @@ public class Model2D {
 		return v;
 	}
 
+	/** the stream function of the current velocity, which is only calculated again after a step has changed the velocity, so the array must not be changed */
 	public float[][] getStreamFunction() {
-		return fluidSolver.getStreamFunction(u, v);
+		return fluidSolver.getStreamFunction();
 	}
 
 	public float[][] getSpecificHeat() {
@@ -956,8 +1509,8 @@ public class Model2D {
 			int ix, iy;
 			synchronized (thermometers) {
 				for (Thermometer m : thermometers) {
-					ix = Math.round(m.getX() / deltaX);
-					iy = Math.round(m.getY() / deltaY);
+					ix = gridX.getIndex(m.getX());
+					iy = gridY.getIndex(m.getY());
 					if (ix >= 0 && ix < nx && iy >= 0 && iy < ny) {
 						switch (m.getStencil()) {
 						case Thermometer.ONE_POINT:
@@ -0,0 +1,478 @@
+/*
+ *   Copyright (C) 2009  The Concord Consortium, Inc.,
+ *   25 Love Lane, Concord, MA 01742
+ */
+
+package org.concord.energy2d.model;
+
+import java.awt.Shape;
+import java.awt.geom.PathIterator;
+import java.util.Arrays;
+
+import org.concord.energy2d.math.ShapeRasterizer;
+
+/**
+ * The cells of a grid that each part covers, labeled by the first part that contains their centers, shared by all the arrays derived from the parts.
+ */
+class PartRaster {
+
+	/** the arrays derived from the raster, each with its own box of cells to refresh */
+	static final int MATERIAL = 0, POWER = 1, BOUNDARY = 2;
+
+	/** the number of points along each side of a cell that the coverage is sampled at, whose square is the number of bits of a mask */
+	static final int SUB = 8;
+
+	/** the fractions of the cells in a box that the parts and the background cover */
+	interface Coverage {
+
+		/** the part, or the background if null, covers the fraction of cell (i, j) */
+		void add(int i, int j, Part part, float fraction);
+
+	}
+
+	private GridAxis gridX, gridY;
+	private int nx, ny;
+
+	// the coordinates of the columns and rows of the grid
+	private float[] x, y;
+
+	// the coordinates of the points that the coverage is sampled at, and the points of the cells that earlier parts have won
+	private float[] xs, ys;
+	private long[] taken;
+	private int[][] covered;
+	private long[][] masks;
+
+	short[] label;
+	int[][] cells;
+
+	/** the number of cells that have each label, the cells of no part having label zero */
+	int[] area;
+
+	// the box of the cells of each part, as {i0, j0, i1, j1} with the upper ends excluded
+	private int[][] bounds = new int[0][];
+
+	private Part[] parts = new Part[0];
+	private double[][] outlines = new double[0][];
+
+	private Scan scan;
+
+	// the box of cells that each array has to refresh, and the properties of the parts and of the background that it was last refreshed with
+	private int[][] dirty = new int[3][];
+	private float[][][] properties = new float[3][][];
+
+	PartRaster(GridAxis gridX, GridAxis gridY, boolean coverage) {
+		this.gridX = gridX;
+		this.gridY = gridY;
+		nx = gridX.getWidth().length;
+		ny = gridY.getWidth().length;
+		label = new short[nx * ny];
+		area = new int[] { nx * ny };
+		cells = new int[0][];
+		x = new float[nx];
+		for (int i = 0; i < nx; i++)
+			x[i] = gridX.getPosition(i);
+		y = new float[ny];
+		for (int j = 0; j < ny; j++)
+			y[j] = gridY.getPosition(j);
+		if (coverage) {
+			xs = getSamples(gridX);
+			ys = getSamples(gridY);
+			taken = new long[nx * ny];
+			covered = new int[0][];
+			masks = new long[0][];
+		}
+		scan = new Scan();
+		for (int a = 0; a < dirty.length; a++) {
+			dirty[a] = getGrid();
+			properties[a] = new float[1][];
+		}
+	}
+
+	/** whether this raster is on the grid of these axes */
+	boolean isOn(GridAxis gridX, GridAxis gridY) {
+		return this.gridX == gridX && this.gridY == gridY;
+	}
+
+	boolean hasCoverage() {
+		return xs != null;
+	}
+
+	/** whether part k covers any of the grid, or for k = -1, whether the background does, which it always may with coverage */
+	boolean hasArea(int k) {
+		if (xs != null)
+			return k < 0 || covered[k].length > 0;
+		return area[k + 1] > 0;
+	}
+
+	Part getPart(short label) {
+		return label == 0 ? null : parts[label - 1];
+	}
+
+	/** bring the raster up to date with the parts, which must not be changed afterwards */
+	void update(Part[] parts) {
+		int n = parts.length;
+		boolean same = n == this.parts.length;
+		for (int k = 0; same && k < n; k++)
+			same = parts[k] == this.parts[k];
+		if (!same) {
+			rasterize(parts);
+			return;
+		}
+		// the boxes of the parts that have been rasterized again, before they were
+		int[][] old = new int[n][];
+		Shape shape;
+		double[] outline;
+		for (int k = 0; k < n; k++) {
+			shape = parts[k].getShape();
+			outline = getOutline(shape);
+			if (!Arrays.equals(outline, outlines[k])) {
+				outlines[k] = outline;
+				old[k] = bounds[k];
+				rasterize(k, shape);
+			}
+		}
+		int[] box = getEmpty();
+		for (int k = 0; k < n; k++) {
+			if (old[k] != null) {
+				union(box, old[k]);
+				union(box, bounds[k]);
+			}
+		}
+		if (!isEmpty(box)) {
+			label(box);
+			for (int[] d : dirty)
+				union(d, box);
+		}
+	}
+
+	/** the box of cells {i0, j0, i1, j1}, the upper ends excluded, that the array has to refresh, after which it has none left */
+	int[] takeDirty(int array) {
+		int[] box = dirty[array];
+		dirty[array] = getEmpty();
+		return box;
+	}
+
+	/** the array has to refresh all its cells */
+	void invalidate(int array) {
+		dirty[array] = getGrid();
+	}
+
+	/** add the cells of part k, or of the background if k is the number of parts, to the box of the array if its properties have changed */
+	void compare(int array, int k, float... values) {
+		if (Arrays.equals(values, properties[array][k]))
+			return;
+		properties[array][k] = values;
+		union(dirty[array], k < parts.length ? bounds[k] : getGrid());
+	}
+
+	/** report the fractions of the cells in the box that the parts and the background cover, the first part winning shared points */
+	void cover(int[] box, Coverage coverage) {
+		int i0 = box[0], j0 = box[1], i1 = box[2], j1 = box[3];
+		for (int i = i0; i < i1; i++)
+			Arrays.fill(taken, i * ny + j0, i * ny + j1, 0);
+		int i, j, c;
+		long won;
+		for (int k = 0; k < covered.length; k++) {
+			if (!intersects(k, box))
+				continue;
+			int[] ck = covered[k];
+			long[] mk = masks[k];
+			for (int n = find(ck, i0 * ny), end = find(ck, i1 * ny); n < end; n++) {
+				c = ck[n];
+				i = c / ny;
+				j = c - i * ny;
+				if (j >= j0 && j < j1) {
+					won = mk[n] & ~taken[c];
+					if (won != 0) {
+						taken[c] |= won;
+						coverage.add(i, j, parts[k], (float) Long.bitCount(won) / (SUB * SUB));
+					}
+				}
+			}
+		}
+		for (i = i0; i < i1; i++) {
+			for (j = j0; j < j1; j++) {
+				won = ~taken[i * ny + j];
+				if (won != 0)
+					coverage.add(i, j, null, (float) Long.bitCount(won) / (SUB * SUB));
+			}
+		}
+	}
+
+	/** set f to the value on the cells of part k that are in the box, or only on those that it has won in the label */
+	void fill(float[][] f, int k, boolean won, int[] box, float value) {
+		int i0 = box[0], j0 = box[1], i1 = box[2], j1 = box[3];
+		short id = (short) (k + 1);
+		int[] ck = cells[k];
+		int c, i, j;
+		for (int n = find(ck, i0 * ny), end = find(ck, i1 * ny); n < end; n++) {
+			c = ck[n];
+			i = c / ny;
+			j = c - i * ny;
+			if (j >= j0 && j < j1 && (!won || label[c] == id))
+				f[i][j] = value;
+		}
+	}
+
+	/** whether part k has cells in the box */
+	boolean intersects(int k, int[] box) {
+		int[] b = bounds[k];
+		return b[0] < box[2] && box[0] < b[2] && b[1] < box[3] && box[1] < b[3];
+	}
+
+	static boolean isEmpty(int[] box) {
+		return box[0] >= box[2] || box[1] >= box[3];
+	}
+
+	/** the box of all the cells of the grid */
+	int[] getGrid() {
+		return new int[] { 0, 0, nx, ny };
+	}
+
+	private int[] getEmpty() {
+		return new int[] { nx, ny, 0, 0 };
+	}
+
+	private void rasterize(Part[] parts) {
+		int n = parts.length;
+		if (n > Short.MAX_VALUE)
+			throw new IllegalStateException("A model cannot have more than " + Short.MAX_VALUE + " parts.");
+		this.parts = parts;
+		outlines = new double[n][];
+		cells = new int[n][];
+		bounds = new int[n][];
+		if (xs != null) {
+			covered = new int[n][];
+			masks = new long[n][];
+		}
+		Shape shape;
+		for (int k = 0; k < n; k++) {
+			shape = parts[k].getShape();
+			outlines[k] = getOutline(shape);
+			rasterize(k, shape);
+		}
+		Arrays.fill(label, (short) 0);
+		area = new int[n + 1];
+		area[0] = nx * ny;
+		label(getGrid());
+		for (int a = 0; a < dirty.length; a++) {
+			dirty[a] = getGrid();
+			properties[a] = new float[n + 1][];
+		}
+	}
+
+	// find the cells of part k, and the masks of the points of the cells that it covers if the raster has coverage
+	private void rasterize(int k, Shape shape) {
+		final Scan s = scan;
+		s.start();
+		ShapeRasterizer.rasterize(shape, x, y, new ShapeRasterizer.Span() {
+			public void add(int j, int from, int to) {
+				for (int i = from; i < to; i++)
+					s.add(i, j, 0);
+			}
+		});
+		s.sort(false);
+		cells[k] = s.sortedCells;
+		if (xs != null) {
+			// the box takes in the cells of both
+			s.count = 0;
+			s.j = -1;
+			ShapeRasterizer.rasterize(shape, xs, ys, new ShapeRasterizer.Span() {
+				public void add(int jj, int from, int to) {
+					int j = jj / SUB;
+					if (j != s.j) {
+						s.flush();
+						s.j = j;
+					}
+					int row = jj % SUB * SUB;
+					int i, end;
+					for (int ii = from; ii < to; ii = end) {
+						i = ii / SUB;
+						end = Math.min(to, (i + 1) * SUB);
+						if (s.row[i] == 0)
+							s.columns[s.touched++] = i;
+						// the points from ii to end in this row of the cell
+						s.row[i] |= (0xFFL >>> (SUB - end + ii)) << (row + ii - i * SUB);
+					}
+				}
+			});
+			s.flush();
+			s.sort(true);
+			covered[k] = s.sortedCells;
+			masks[k] = s.sortedMasks;
+		}
+		bounds[k] = s.box;
+	}
+
+	// label the cells in the box again, each with the first part that contains it
+	private void label(int[] box) {
+		int i0 = box[0], j0 = box[1], i1 = box[2], j1 = box[3];
+		for (int i = i0; i < i1; i++) {
+			for (int j = j0; j < j1; j++) {
+				area[label[i * ny + j]]--;
+				label[i * ny + j] = 0;
+			}
+		}
+		area[0] += (i1 - i0) * (j1 - j0);
+		int c, j;
+		short id;
+		for (int k = 0; k < cells.length; k++) {
+			if (!intersects(k, box))
+				continue;
+			id = (short) (k + 1);
+			int[] ck = cells[k];
+			for (int n = find(ck, i0 * ny), end = find(ck, i1 * ny); n < end; n++) {
+				c = ck[n];
+				if (label[c] != 0)
+					continue;
+				j = c % ny;
+				if (j >= j0 && j < j1) {
+					label[c] = id;
+					area[0]--;
+					area[id]++;
+				}
+			}
+		}
+	}
+
+	// the index of the first cell that is not below c
+	private static int find(int[] cells, int c) {
+		int n = Arrays.binarySearch(cells, c);
+		return n < 0 ? -n - 1 : n;
+	}
+
+	// the points of the cells of an axis, SUB to a cell
+	private static float[] getSamples(GridAxis axis) {
+		float[] width = axis.getWidth();
+		float[] s = new float[width.length * SUB];
+		float x;
+		for (int i = 0; i < width.length; i++) {
+			x = axis.getPosition(i);
+			for (int a = 0; a < SUB; a++)
+				s[i * SUB + a] = x + ((a + 0.5f) / SUB - 0.5f) * width[i];
+		}
+		return s;
+	}
+
+	// extend box a to take in box b
+	private static void union(int[] a, int[] b) {
+		if (isEmpty(b))
+			return;
+		a[0] = Math.min(a[0], b[0]);
+		a[1] = Math.min(a[1], b[1]);
+		a[2] = Math.max(a[2], b[2]);
+		a[3] = Math.max(a[3], b[3]);
+	}
+
+	// the types and coordinates of the segments of the outline of a shape
+	private static double[] getOutline(Shape shape) {
+		double[] outline = new double[64];
+		double[] coords = new double[6];
+		int m = 0;
+		int type;
+		for (PathIterator it = shape.getPathIterator(null); !it.isDone(); it.next()) {
+			if (m + 7 > outline.length)
+				outline = Arrays.copyOf(outline, 2 * outline.length);
+			type = it.currentSegment(coords);
+			outline[m++] = type;
+			for (int n = 0; n < 2 * getPoints(type); n++)
+				outline[m++] = coords[n];
+		}
+		return Arrays.copyOf(outline, m);
+	}
+
+	// the number of points of a segment of a path
+	private static int getPoints(int type) {
+		switch (type) {
+		case PathIterator.SEG_CUBICTO:
+			return 3;
+		case PathIterator.SEG_QUADTO:
+			return 2;
+		case PathIterator.SEG_CLOSE:
+			return 0;
+		default:
+			return 1;
+		}
+	}
+
+	// the buffers that the parts are rasterized with one after another
+	private class Scan {
+
+		int[] cells = new int[256];
+		long[] masks = new long[256];
+		int count;
+		int[] box;
+		int[] sortedCells;
+		long[] sortedMasks;
+
+		// the row of cells being covered, the masks of its cells, and the columns that have a mask
+		int j;
+		long[] row;
+		int[] columns;
+		int touched;
+
+		private int[] start = new int[nx + 1];
+
+		Scan() {
+			if (xs != null) {
+				row = new long[nx];
+				columns = new int[nx];
+			}
+		}
+
+		void start() {
+			count = 0;
+			box = getEmpty();
+			j = -1;
+			touched = 0;
+		}
+
+		void add(int i, int j, long mask) {
+			if (count == cells.length) {
+				cells = Arrays.copyOf(cells, 2 * count);
+				masks = Arrays.copyOf(masks, 2 * count);
+			}
+			cells[count] = i * ny + j;
+			masks[count] = mask;
+			count++;
+			if (box[0] > i)
+				box[0] = i;
+			if (box[1] > j)
+				box[1] = j;
+			if (box[2] <= i)
+				box[2] = i + 1;
+			if (box[3] <= j)
+				box[3] = j + 1;
+		}
+
+		// add the cells of the row that have a mask
+		void flush() {
+			int i;
+			for (int t = 0; t < touched; t++) {
+				i = columns[t];
+				add(i, j, row[i]);
+				row[i] = 0;
+			}
+			touched = 0;
+		}
+
+		void sort(boolean withMasks) {
+			Arrays.fill(start, 0);
+			for (int n = 0; n < count; n++)
+				start[cells[n] / ny + 1]++;
+			for (int i = 0; i < nx; i++)
+				start[i + 1] += start[i];
+			sortedCells = new int[count];
+			sortedMasks = withMasks ? new long[count] : null;
+			int p;
+			for (int n = 0; n < count; n++) {
+				p = start[cells[n] / ny]++;
+				sortedCells[p] = cells[n];
+				if (withMasks)
+					sortedMasks[p] = masks[n];
+			}
+		}
+
+	}
+
+}
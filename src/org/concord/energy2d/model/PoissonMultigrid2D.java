@@ -0,0 +1,430 @@
+/*
+ *   Copyright (C) 2009  The Concord Consortium, Inc.,
+ *   25 Love Lane, Concord, MA 01742
+ */
+
+package org.concord.energy2d.model;
+
+import java.util.Arrays;
+
+/**
+ * A geometric multigrid solver for laplacian(phi) = div on the fluid cells, with phi = 0 on an open border and dphi/dn = 0 on a reflective border or an obstacle.
+ */
+class PoissonMultigrid2D {
+
+	private final static int PRE_SMOOTHING = 2;
+	private final static int POST_SMOOTHING = 2;
+	private final static int COARSEST_SMOOTHING = 20;
+
+	// a grid of the hierarchy with m x n interior cells, the couplings per column and row, and the open fractions fx and fy of the faces
+	private static class Level {
+		int m, n;
+		boolean[][] fluidity;
+		float[][] x, b, r;
+		float[][] fx, fy;
+		float[] west, east, north, south; // geometric factors
+		float[] ax1, ax2, ay1, ay2; // the same, times 1 / dx^2 and 1 / dy^2
+	}
+
+	private Level[] levels;
+	private float tolerance = 0.001f;
+	private int maxCycles = 20;
+	private int cycles;
+	private float idxsq, idysq;
+	private int[][] region;
+	private int[] stack;
+	private float[] mean;
+	private boolean[] open = new boolean[4];
+
+	PoissonMultigrid2D(int nx, int ny) {
+		int count = 1;
+		for (int m = nx - 2, n = ny - 2; m > 4 && n > 4; m = (m + 1) / 2, n = (n + 1) / 2)
+			count++;
+		levels = new Level[count];
+		int m = nx - 2, n = ny - 2;
+		float[] cx = null, wx = null, cy = null, wy = null;
+		for (int l = 0; l < count; l++) {
+			Level g = new Level();
+			g.m = m;
+			g.n = n;
+			g.r = new float[m + 2][n + 2];
+			g.fx = new float[m + 1][n + 2];
+			g.fy = new float[m + 2][n + 1];
+			if (l > 0) {
+				g.fluidity = new boolean[m + 2][n + 2];
+				g.x = new float[m + 2][n + 2];
+				g.b = new float[m + 2][n + 2];
+			}
+			if (l == 0) {
+				cx = centers(m);
+				wx = widths(m);
+				cy = centers(n);
+				wy = widths(n);
+			} else {
+				wx = coarsenWidths(wx, m);
+				cx = coarsenCenters(cx, levels[l - 1].m, m);
+				wy = coarsenWidths(wy, n);
+				cy = coarsenCenters(cy, levels[l - 1].n, n);
+			}
+			g.west = new float[m + 2];
+			g.east = new float[m + 2];
+			for (int i = 1; i <= m; i++) {
+				g.west[i] = 1f / (wx[i] * (cx[i] - cx[i - 1]));
+				g.east[i] = 1f / (wx[i] * (cx[i + 1] - cx[i]));
+			}
+			g.north = new float[n + 2];
+			g.south = new float[n + 2];
+			for (int j = 1; j <= n; j++) {
+				g.north[j] = 1f / (wy[j] * (cy[j] - cy[j - 1]));
+				g.south[j] = 1f / (wy[j] * (cy[j + 1] - cy[j]));
+			}
+			g.ax1 = new float[m + 2];
+			g.ax2 = new float[m + 2];
+			g.ay1 = new float[n + 2];
+			g.ay2 = new float[n + 2];
+			levels[l] = g;
+			m = (m + 1) / 2;
+			n = (n + 1) / 2;
+		}
+	}
+
+	// the centers of the cells of the finest grid, including the border cells
+	private static float[] centers(int m) {
+		float[] c = new float[m + 2];
+		for (int i = 0; i < c.length; i++)
+			c[i] = i;
+		return c;
+	}
+
+	private static float[] widths(int m) {
+		float[] w = new float[m + 2];
+		Arrays.fill(w, 1);
+		return w;
+	}
+
+	private static float[] coarsenWidths(float[] w, int m) {
+		float[] c = new float[m + 2];
+		int fm = w.length - 2;
+		for (int i = 1; i <= m; i++)
+			c[i] = 2 * i <= fm ? w[2 * i - 1] + w[2 * i] : w[2 * i - 1];
+		return c;
+	}
+
+	// a coarse cell is centered on the fine cells it covers, and the border stays where it is
+	private static float[] coarsenCenters(float[] x, int fm, int m) {
+		float[] c = new float[m + 2];
+		c[0] = x[0];
+		c[m + 1] = x[fm + 1];
+		for (int i = 1; i <= m; i++)
+			c[i] = 2 * i <= fm ? 0.5f * (x[2 * i - 1] + x[2 * i]) : x[2 * i - 1];
+		return c;
+	}
+
+	/** the V-cycles stop when the largest residual is not larger than this fraction of the largest divergence, and a tolerance of zero runs all the cycles */
+	void setTolerance(float tolerance) {
+		this.tolerance = tolerance;
+	}
+
+	float getTolerance() {
+		return tolerance;
+	}
+
+	void setMaxCycles(int maxCycles) {
+		this.maxCycles = maxCycles;
+	}
+
+	/** a border that lets the fluid through has phi = 0 on it; a reflective one has dphi/dn = 0 */
+	void setOpenBorder(byte side, boolean b) {
+		open[side] = b;
+	}
+
+	/** the number of V-cycles used by the last solution */
+	int getCycles() {
+		return cycles;
+	}
+
+	/** solve laplacian(phi) = div on the fluid cells, starting from the interior of phi and leaving its border untouched */
+	void solve(float[][] phi, float[][] div, boolean[][] fluidity, float idxsq, float idysq) {
+		if (idxsq != this.idxsq || idysq != this.idysq) {
+			this.idxsq = idxsq;
+			this.idysq = idysq;
+			for (Level g : levels) {
+				for (int i = 1; i <= g.m; i++) {
+					g.ax1[i] = idxsq * g.west[i];
+					g.ax2[i] = idxsq * g.east[i];
+				}
+				for (int j = 1; j <= g.n; j++) {
+					g.ay1[j] = idysq * g.north[j];
+					g.ay2[j] = idysq * g.south[j];
+				}
+			}
+		}
+		Level g = levels[0];
+		g.x = phi;
+		g.b = div;
+		g.fluidity = fluidity;
+		setFaces(g);
+		makeCompatible(g);
+		for (int l = 1; l < levels.length; l++) {
+			coarsen(levels[l - 1], levels[l]);
+		}
+		float norm = maxNorm(g, g.b);
+		cycles = 0;
+		if (norm == 0)
+			return;
+		float target = tolerance * norm;
+		while (cycles < maxCycles) {
+			vcycle(0);
+			cycles++;
+			residual(g);
+			if (maxNorm(g, g.r) <= target)
+				break;
+		}
+	}
+
+	// on the finest grid, a face is open if the cells on both sides are fluid, and a border face is open if the cell inside is and the border lets the fluid through
+	private void setFaces(Level g) {
+		boolean[][] w = g.fluidity;
+		for (int i = 0; i <= g.m; i++) {
+			for (int j = 1; j <= g.n; j++)
+				g.fx[i][j] = (i == 0 ? open[Boundary.LEFT] : w[i][j]) && (i == g.m ? open[Boundary.RIGHT] : w[i + 1][j]) ? 1 : 0;
+		}
+		for (int i = 1; i <= g.m; i++) {
+			for (int j = 0; j <= g.n; j++)
+				g.fy[i][j] = (j == 0 ? open[Boundary.UPPER] : w[i][j]) && (j == g.n ? open[Boundary.LOWER] : w[i][j + 1]) ? 1 : 0;
+		}
+	}
+
+	// remove the mean divergence of each closed pocket of fluid, without which the equation has no solution
+	private void makeCompatible(Level g) {
+		int m = g.m, n = g.n;
+		if (region == null) {
+			region = new int[m + 2][n + 2];
+			stack = new int[m * n];
+			mean = new float[m * n + 1];
+		} else {
+			for (int i = 1; i <= m; i++)
+				Arrays.fill(region[i], 0);
+		}
+		int count = 0;
+		for (int i0 = 1; i0 <= m; i0++) {
+			for (int j0 = 1; j0 <= n; j0++) {
+				if (!g.fluidity[i0][j0] || region[i0][j0] != 0)
+					continue;
+				// flood the pocket that contains this cell, summing the divergence and checking whether it touches a border that lets the fluid through
+				count++;
+				region[i0][j0] = count;
+				int top = 0, size = 0;
+				stack[top++] = i0 * (n + 2) + j0;
+				boolean through = false;
+				double sum = 0;
+				while (top > 0) {
+					int k = stack[--top];
+					int i = k / (n + 2), j = k % (n + 2);
+					size++;
+					sum += g.b[i][j];
+					if (i == 1 && open[Boundary.LEFT] || i == m && open[Boundary.RIGHT] || j == 1 && open[Boundary.UPPER] || j == n && open[Boundary.LOWER])
+						through = true;
+					if (i > 1 && g.fluidity[i - 1][j] && region[i - 1][j] == 0) {
+						region[i - 1][j] = count;
+						stack[top++] = k - n - 2;
+					}
+					if (i < m && g.fluidity[i + 1][j] && region[i + 1][j] == 0) {
+						region[i + 1][j] = count;
+						stack[top++] = k + n + 2;
+					}
+					if (j > 1 && g.fluidity[i][j - 1] && region[i][j - 1] == 0) {
+						region[i][j - 1] = count;
+						stack[top++] = k - 1;
+					}
+					if (j < n && g.fluidity[i][j + 1] && region[i][j + 1] == 0) {
+						region[i][j + 1] = count;
+						stack[top++] = k + 1;
+					}
+				}
+				mean[count] = through ? 0 : (float) (sum / size);
+			}
+		}
+		for (int i = 1; i <= m; i++) {
+			for (int j = 1; j <= n; j++) {
+				if (region[i][j] != 0)
+					g.b[i][j] -= mean[region[i][j]];
+			}
+		}
+	}
+
+	private void vcycle(int l) {
+		Level g = levels[l];
+		if (l == levels.length - 1) {
+			smooth(g, COARSEST_SMOOTHING);
+			return;
+		}
+		smooth(g, PRE_SMOOTHING);
+		residual(g);
+		Level c = levels[l + 1];
+		restrict(g, c);
+		for (int i = 0; i < c.m + 2; i++)
+			Arrays.fill(c.x[i], 0);
+		vcycle(l + 1);
+		prolong(c, g);
+		smooth(g, POST_SMOOTHING);
+	}
+
+	// a coarse cell is fluid if any of its fine cells is, and a coarse face is open by the mean of the fine faces that make it up
+	private static void coarsen(Level f, Level c) {
+		for (int i = 1; i <= c.m; i++) {
+			int fi = 2 * i - 1, fi1 = Math.min(fi + 1, f.m);
+			for (int j = 1; j <= c.n; j++) {
+				int fj = 2 * j - 1, fj1 = Math.min(fj + 1, f.n);
+				c.fluidity[i][j] = f.fluidity[fi][fj] || f.fluidity[fi1][fj] || f.fluidity[fi][fj1] || f.fluidity[fi1][fj1];
+			}
+		}
+		for (int i = 0; i <= c.m; i++) {
+			int fi = Math.min(2 * i, f.m);
+			for (int j = 1; j <= c.n; j++) {
+				int fj = 2 * j - 1;
+				c.fx[i][j] = fj < f.n ? 0.5f * (f.fx[fi][fj] + f.fx[fi][fj + 1]) : f.fx[fi][fj];
+			}
+		}
+		for (int i = 1; i <= c.m; i++) {
+			int fi = 2 * i - 1;
+			for (int j = 0; j <= c.n; j++) {
+				int fj = Math.min(2 * j, f.n);
+				c.fy[i][j] = fi < f.m ? 0.5f * (f.fy[fi][fj] + f.fy[fi + 1][fj]) : f.fy[fi][fj];
+			}
+		}
+	}
+
+	private static void smooth(Level g, int sweeps) {
+		float[][] x = g.x;
+		float[] ay1 = g.ay1, ay2 = g.ay2;
+		int m = g.m, n = g.n;
+		float ax1, ax2, cw, ce, cn, cs, d, s;
+		for (int k = 0; k < sweeps; k++) {
+			for (int c = 0; c < 2; c++) {
+				for (int i = 1; i <= m; i++) {
+					float[] xm = x[i - 1], xi = x[i], xp = x[i + 1], bi = g.b[i], fw = g.fx[i - 1], fe = g.fx[i], fi = g.fy[i];
+					boolean[] wi = g.fluidity[i];
+					ax1 = g.ax1[i];
+					ax2 = g.ax2[i];
+					for (int j = ((i + 1) & 1) == c ? 1 : 2; j <= n; j += 2) {
+						if (wi[j]) {
+							cw = ax1 * fw[j];
+							ce = ax2 * fe[j];
+							cn = ay1[j] * fi[j - 1];
+							cs = ay2[j] * fi[j];
+							d = cw + ce + cn + cs;
+							s = -bi[j];
+							if (i > 1)
+								s += cw * xm[j];
+							if (i < m)
+								s += ce * xp[j];
+							if (j > 1)
+								s += cn * xi[j - 1];
+							if (j < n)
+								s += cs * xi[j + 1];
+							xi[j] = d > 0 ? s / d : 0;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	// r = b - laplacian(x)
+	private static void residual(Level g) {
+		float[][] x = g.x;
+		float[] ay1 = g.ay1, ay2 = g.ay2;
+		int m = g.m, n = g.n;
+		float ax1, ax2, s, xij;
+		for (int i = 1; i <= m; i++) {
+			float[] xm = x[i - 1], xi = x[i], xp = x[i + 1], bi = g.b[i], ri = g.r[i], fw = g.fx[i - 1], fe = g.fx[i], fi = g.fy[i];
+			boolean[] wi = g.fluidity[i];
+			ax1 = g.ax1[i];
+			ax2 = g.ax2[i];
+			for (int j = 1; j <= n; j++) {
+				if (wi[j]) {
+					xij = xi[j];
+					s = ax1 * fw[j] * ((i > 1 ? xm[j] : 0) - xij);
+					s += ax2 * fe[j] * ((i < m ? xp[j] : 0) - xij);
+					s += ay1[j] * fi[j - 1] * ((j > 1 ? xi[j - 1] : 0) - xij);
+					s += ay2[j] * fi[j] * ((j < n ? xi[j + 1] : 0) - xij);
+					ri[j] = bi[j] - s;
+				} else {
+					ri[j] = 0;
+				}
+			}
+		}
+	}
+
+	// restrict the residual as its mean over the whole of each coarse cell, counting the obstacles as zero
+	private static void restrict(Level f, Level c) {
+		for (int i = 1; i <= c.m; i++) {
+			int fi = 2 * i - 1;
+			boolean two = fi < f.m;
+			float[] r0 = f.r[fi], r1 = two ? f.r[fi + 1] : null, bi = c.b[i];
+			for (int j = 1; j <= c.n; j++) {
+				int fj = 2 * j - 1;
+				if (fj < f.n)
+					bi[j] = two ? 0.25f * (r0[fj] + r0[fj + 1] + r1[fj] + r1[fj + 1]) : 0.5f * (r0[fj] + r0[fj + 1]);
+				else
+					bi[j] = two ? 0.5f * (r0[fj] + r1[fj]) : r0[fj];
+			}
+		}
+	}
+
+	// add the coarse correction, interpolated bilinearly from the coarse cells that the open faces connect
+	private static void prolong(Level c, Level f) {
+		float s, w;
+		boolean ox, oy;
+		for (int i = 1; i <= f.m; i++) {
+			int ci = (i + 1) >> 1;
+			boolean west = (i & 1) == 1; // the first of the two fine cells is nearer to the coarse cell on the west
+			int ni = west ? ci - 1 : ci + 1;
+			float[] fx = west ? c.fx[ci - 1] : c.fx[ci];
+			float[] fy = c.fy[ci];
+			float[] xc = c.x[ci], xn = c.x[ni];
+			boolean[] wi = f.fluidity[i];
+			float[] xi = f.x[i];
+			for (int j = 1; j <= f.n; j++) {
+				if (!wi[j])
+					continue;
+				int cj = (j + 1) >> 1;
+				boolean north = (j & 1) == 1;
+				int nj = north ? cj - 1 : cj + 1;
+				s = 9 * xc[cj];
+				w = 9;
+				ox = fx[cj] > 0;
+				oy = (north ? fy[cj - 1] : fy[cj]) > 0;
+				if (ox) {
+					s += 3 * xn[cj];
+					w += 3;
+				}
+				if (oy) {
+					s += 3 * xc[nj];
+					w += 3;
+				}
+				if (ox && oy) {
+					s += xn[nj];
+					w += 1;
+				}
+				xi[j] += s / w;
+			}
+		}
+	}
+
+	private static float maxNorm(Level g, float[][] a) {
+		float max = 0, x;
+		for (int i = 1; i <= g.m; i++) {
+			for (int j = 1; j <= g.n; j++) {
+				if (g.fluidity[i][j]) {
+					x = Math.abs(a[i][j]);
+					if (x > max)
+						max = x;
+				}
+			}
+		}
+		return max;
+	}
+
+}
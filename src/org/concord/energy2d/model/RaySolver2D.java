@@ -17,7 +17,6 @@ import java.util.List;
 class RaySolver2D {
 
 	private float[][] q;
-	private float deltaX, deltaY;
 	private float lx, ly, sunAngle = (float) Math.PI * 0.5f;
 	private int rayCount = 24;
 	private float solarPowerDensity = 2000;
@@ -67,11 +66,6 @@ class RaySolver2D {
 		return rayCount;
 	}
 
-	void setGridCellSize(float deltaX, float deltaY) {
-		this.deltaX = deltaX;
-		this.deltaY = deltaY;
-	}
-
 	void setPower(float[][] q) {
 		this.q = q;
 	}
@@ -91,13 +85,12 @@ class RaySolver2D {
 		if (photons.isEmpty())
 			return;
 		Photon p;
-		float timeStep = model.getTimeStep();
+		float timeStep = model.getCurrentTimeStep();
 		// Since a photon is emitted at a given interval, its energy
 		// has to be divided evenly for internal power generation at
 		// each second. The following factor takes this into account.
 		float factor = 1.0f / (timeStep * model.getPhotonEmissionInterval());
-		float idx = 1.0f / deltaX;
-		float idy = 1.0f / deltaY;
+		GridAxis gridX = model.getGridX(), gridY = model.getGridY();
 		int i, j;
 		int nx = q.length - 1;
 		int ny = q[0].length - 1;
@@ -115,8 +108,8 @@ class RaySolver2D {
 									break;
 							} else if (Math.abs(part.getAbsorption() - 1) < 0.001f) {
 								if (part.absorb(p)) {
-									i = Math.min(nx, Math.round(p.getX() * idx));
-									j = Math.min(ny, Math.round(p.getY() * idy));
+									i = Math.min(nx, gridX.getIndex(p.getX()));
+									j = Math.min(ny, gridY.getIndex(p.getY()));
 									if (i < 0)
 										i = 0;
 									if (j < 0)
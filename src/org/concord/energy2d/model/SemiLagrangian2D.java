@@ -0,0 +1,134 @@
+/*
+ *   Copyright (C) 2009  The Concord Consortium, Inc.,
+ *   25 Love Lane, Concord, MA 01742
+ */
+
+package org.concord.energy2d.model;
+
+/**
+ * Semi-Lagrangian advection: the new value of a fluid cell is the old value, interpolated from the fluid cells, at the point that the flow carries to its center.
+ */
+class SemiLagrangian2D {
+
+	private SemiLagrangian2D() {
+	}
+
+	/**
+	 * Advect f0 into f over the fluid cells of the columns [from, to).
+	 *
+	 * @param tx
+	 *            the time step over the cell size in x
+	 * @param ty
+	 *            the time step over the cell size in y
+	 */
+	static void advect(float[][] f0, float[][] f, float[][] u, float[][] v, float tx, float ty, boolean[][] fluidity, CellRuns cells, int from, int to) {
+		int nx1 = f0.length - 1, ny1 = f0[0].length - 1;
+		float x, y;
+		int[] r;
+		for (int i = from; i < to; i++) {
+			r = cells.runs[i];
+			for (int k = 0; k < cells.length[i]; k += 2) {
+				for (int j = r[k]; j < r[k + 1]; j++) {
+					// the midpoint of the path, in units of cells
+					x = clamp(i - 0.5f * tx * u[i][j], nx1);
+					y = clamp(j - 0.5f * ty * v[i][j], ny1);
+					x = clamp(i - tx * interpolate(u, x, y), nx1);
+					y = clamp(j - ty * interpolate(v, x, y), ny1);
+					f[i][j] = interpolate(f0, fluidity, x, y, f0[i][j]);
+				}
+			}
+		}
+	}
+
+	private static float clamp(float x, int max) {
+		if (x < 0)
+			return 0;
+		if (x > max)
+			return max;
+		return x;
+	}
+
+	private static float interpolate(float[][] f, float x, float y) {
+		int i = Math.min((int) x, f.length - 2);
+		int j = Math.min((int) y, f[0].length - 2);
+		float s = x - i, t = y - j;
+		return (1 - s) * ((1 - t) * f[i][j] + t * f[i][j + 1]) + s * ((1 - t) * f[i + 1][j] + t * f[i + 1][j + 1]);
+	}
+
+	// the weights of the cells that are not fluid are left out, and the others are normalized
+	private static float interpolate(float[][] f, boolean[][] fluidity, float x, float y, float fallback) {
+		int i = Math.min((int) x, f.length - 2);
+		int j = Math.min((int) y, f[0].length - 2);
+		float s = x - i, t = y - j;
+		float w, sum = 0, weight = 0;
+		if (fluidity[i][j]) {
+			w = (1 - s) * (1 - t);
+			sum += w * f[i][j];
+			weight += w;
+		}
+		if (fluidity[i][j + 1]) {
+			w = (1 - s) * t;
+			sum += w * f[i][j + 1];
+			weight += w;
+		}
+		if (fluidity[i + 1][j]) {
+			w = s * (1 - t);
+			sum += w * f[i + 1][j];
+			weight += w;
+		}
+		if (fluidity[i + 1][j + 1]) {
+			w = s * t;
+			sum += w * f[i + 1][j + 1];
+			weight += w;
+		}
+		return weight > 0 ? sum / weight : fallback;
+	}
+
+	/** the same for a field of doubles, whose path is found from the same float velocity */
+	static void advect(double[][] f0, double[][] f, float[][] u, float[][] v, float tx, float ty, boolean[][] fluidity, CellRuns cells, int from, int to) {
+		int nx1 = f0.length - 1, ny1 = f0[0].length - 1;
+		float x, y;
+		int[] r;
+		for (int i = from; i < to; i++) {
+			r = cells.runs[i];
+			for (int k = 0; k < cells.length[i]; k += 2) {
+				for (int j = r[k]; j < r[k + 1]; j++) {
+					x = clamp(i - 0.5f * tx * u[i][j], nx1);
+					y = clamp(j - 0.5f * ty * v[i][j], ny1);
+					x = clamp(i - tx * interpolate(u, x, y), nx1);
+					y = clamp(j - ty * interpolate(v, x, y), ny1);
+					f[i][j] = interpolate(f0, fluidity, x, y, f0[i][j]);
+				}
+			}
+		}
+	}
+
+	private static double interpolate(double[][] f, boolean[][] fluidity, float x, float y, double fallback) {
+		int i = Math.min((int) x, f.length - 2);
+		int j = Math.min((int) y, f[0].length - 2);
+		double s = x - i, t = y - j;
+		double w, sum = 0, weight = 0;
+		if (fluidity[i][j]) {
+			w = (1 - s) * (1 - t);
+			sum += w * f[i][j];
+			weight += w;
+		}
+		if (fluidity[i][j + 1]) {
+			w = (1 - s) * t;
+			sum += w * f[i][j + 1];
+			weight += w;
+		}
+		if (fluidity[i + 1][j]) {
+			w = s * (1 - t);
+			sum += w * f[i + 1][j];
+			weight += w;
+		}
+		if (fluidity[i + 1][j + 1]) {
+			w = s * t;
+			sum += w * f[i + 1][j + 1];
+			weight += w;
+		}
+		return weight > 0 ? sum / weight : fallback;
+	}
+
+}
@@ -0,0 +1,271 @@
+/*
+ *   Copyright (C) 2009  The Concord Consortium, Inc.,
+ *   25 Love Lane, Concord, MA 01742
+ */
+
+package org.concord.energy2d.model;
+
+/**
+ * Solves for the equilibrium of heat conduction directly by conjugate gradient, preconditioned by an incomplete Cholesky factorization.
+ */
+class SteadyStateSolver2D {
+
+	private int nx, ny, nx1, ny1;
+	private double[][] diag, cx, cy, pre, b, x, r, z, p, ap;
+	private float tolerance = 0.00001f;
+	private int maxIterations = 5000;
+	private int iterations;
+
+	SteadyStateSolver2D(int nx, int ny) {
+		this.nx = nx;
+		this.ny = ny;
+		nx1 = nx - 1;
+		ny1 = ny - 1;
+		diag = new double[nx][ny];
+		cx = new double[nx][ny];
+		cy = new double[nx][ny];
+		pre = new double[nx][ny];
+		b = new double[nx][ny];
+		x = new double[nx][ny];
+		r = new double[nx][ny];
+		z = new double[nx][ny];
+		p = new double[nx][ny];
+		ap = new double[nx][ny];
+	}
+
+	/** the iteration stops when the residual of every cell, divided by its diagonal, is within this many degrees */
+	void setTolerance(float tolerance) {
+		this.tolerance = tolerance;
+	}
+
+	float getTolerance() {
+		return tolerance;
+	}
+
+	/** the number of iterations used by the last solution */
+	int getIterations() {
+		return iterations;
+	}
+
+	/**
+	 * Solve for the steady state of the heat solver, starting from the temperature field t and writing the result into it if the iteration converges.
+	 *
+	 * @return false, leaving t alone, if nothing holds the temperature or the iteration did not converge
+	 */
+	boolean solve(HeatSolver2D h, float[][] t) {
+		if (!assemble(h, t))
+			return false;
+		factorize();
+		double rz = 0, rz1;
+		for (int i = 1; i < nx1; i++) {
+			for (int j = 1; j < ny1; j++)
+				x[i][j] = t[i][j];
+		}
+		multiply(x, r);
+		for (int i = 1; i < nx1; i++) {
+			for (int j = 1; j < ny1; j++)
+				r[i][j] = b[i][j] - r[i][j];
+		}
+		precondition(r, z);
+		for (int i = 1; i < nx1; i++) {
+			for (int j = 1; j < ny1; j++) {
+				p[i][j] = z[i][j];
+				rz += r[i][j] * z[i][j];
+			}
+		}
+		boolean converged = false;
+		for (iterations = 0; iterations <= maxIterations; iterations++) {
+			converged = isConverged();
+			if (converged)
+				break;
+			multiply(p, ap);
+			double pap = 0;
+			for (int i = 1; i < nx1; i++) {
+				for (int j = 1; j < ny1; j++)
+					pap += p[i][j] * ap[i][j];
+			}
+			if (pap <= 0)
+				break;
+			double alpha = rz / pap;
+			for (int i = 1; i < nx1; i++) {
+				for (int j = 1; j < ny1; j++) {
+					x[i][j] += alpha * p[i][j];
+					r[i][j] -= alpha * ap[i][j];
+				}
+			}
+			precondition(r, z);
+			rz1 = 0;
+			for (int i = 1; i < nx1; i++) {
+				for (int j = 1; j < ny1; j++)
+					rz1 += r[i][j] * z[i][j];
+			}
+			double beta = rz1 / rz;
+			rz = rz1;
+			for (int i = 1; i < nx1; i++) {
+				for (int j = 1; j < ny1; j++)
+					p[i][j] = z[i][j] + beta * p[i][j];
+			}
+		}
+		if (!converged)
+			return false;
+		for (int i = 1; i < nx1; i++) {
+			for (int j = 1; j < ny1; j++)
+				t[i][j] = (float) x[i][j];
+		}
+		h.applyBoundary(t);
+		return true;
+	}
+
+	// the residual of each cell, scaled by its diagonal, is the temperature change that would balance it
+	private boolean isConverged() {
+		for (int i = 1; i < nx1; i++) {
+			for (int j = 1; j < ny1; j++) {
+				if (Math.abs(r[i][j]) > tolerance * diag[i][j])
+					return false;
+			}
+		}
+		return true;
+	}
+
+	// set up the couplings, the diagonal and the right-hand side, with each equation multiplied by the area of its cell so that the system stays symmetric
+	private boolean assemble(HeatSolver2D h, float[][] t) {
+		float[][] k = h.conductivity, tb = h.tb;
+		float[] sx = h.gridX.getSpacing(), sy = h.gridY.getSpacing(), widthX = h.gridX.getWidth(), widthY = h.gridY.getWidth();
+		boolean anchored = h.zHeatDiffusivity > 0;
+		double wx, wy;
+		for (int i = 1; i < nx1; i++) {
+			wx = widthX[i];
+			for (int j = 1; j < ny1; j++) {
+				wy = widthY[j];
+				cx[i][j] = cy[i][j] = 0;
+				if (!Float.isNaN(tb[i][j])) {
+					diag[i][j] = 1;
+					b[i][j] = tb[i][j];
+					anchored = true;
+					continue;
+				}
+				double sink = h.zHeatDiffusivity * h.density[i][j] * h.specificHeat[i][j] * wx * wy;
+				diag[i][j] = sink;
+				b[i][j] = h.q[i][j] * wx * wy + sink * h.backgroundTemperature;
+				// the east and south neighbors: a free one is coupled, a fixed one is known
+				if (i < nx1 - 1) {
+					double c = 0.5 * wy / sx[i] * (k[i][j] + k[i + 1][j]);
+					diag[i][j] += c;
+					if (Float.isNaN(tb[i + 1][j]))
+						cx[i][j] = c;
+					else
+						b[i][j] += c * tb[i + 1][j];
+				}
+				if (j < ny1 - 1) {
+					double c = 0.5 * wx / sy[j] * (k[i][j] + k[i][j + 1]);
+					diag[i][j] += c;
+					if (Float.isNaN(tb[i][j + 1]))
+						cy[i][j] = c;
+					else
+						b[i][j] += c * tb[i][j + 1];
+				}
+				// the west and north neighbors, which are not coupled here to avoid counting a pair twice
+				if (i > 1) {
+					double c = 0.5 * wy / sx[i - 1] * (k[i][j] + k[i - 1][j]);
+					diag[i][j] += c;
+					if (!Float.isNaN(tb[i - 1][j]))
+						b[i][j] += c * tb[i - 1][j];
+				}
+				if (j > 1) {
+					double c = 0.5 * wx / sy[j - 1] * (k[i][j] + k[i][j - 1]);
+					diag[i][j] += c;
+					if (!Float.isNaN(tb[i][j - 1]))
+						b[i][j] += c * tb[i][j - 1];
+				}
+			}
+		}
+		anchored |= addBorder(h, t, Boundary.LEFT);
+		anchored |= addBorder(h, t, Boundary.RIGHT);
+		anchored |= addBorder(h, t, Boundary.UPPER);
+		anchored |= addBorder(h, t, Boundary.LOWER);
+		return anchored;
+	}
+
+	// couple the cells next to a border to it, returning whether the border holds the temperature
+	private boolean addBorder(HeatSolver2D h, float[][] t, byte side) {
+		ThermalBoundary boundary = h.boundary;
+		float[][] k = h.conductivity;
+		boolean vertical = side == Boundary.LEFT || side == Boundary.RIGHT;
+		int n = vertical ? ny : nx;
+		int border = side == Boundary.LEFT || side == Boundary.UPPER ? 0 : (vertical ? nx1 : ny1);
+		int inside = border == 0 ? 1 : border - 1;
+		// the distance from the border to the cells inside, and the lengths of the faces between them
+		GridAxis across = vertical ? h.gridX : h.gridY;
+		float[] along = vertical ? h.gridY.getWidth() : h.gridX.getWidth();
+		float size = across.getSpacing(border == 0 ? 0 : border - 1);
+		float[] temperatures = null;
+		float flux = 0;
+		if (boundary instanceof NeumannThermalBoundary) {
+			flux = ((NeumannThermalBoundary) boundary).getFluxAtBorder(side);
+			// the ghost minus the inside cell: -flux on the left and lower sides, +flux on the right and upper sides
+			if (side == Boundary.LEFT || side == Boundary.LOWER)
+				flux = -flux;
+		} else if (boundary instanceof ComplexDirichletThermalBoundary) {
+			temperatures = ((ComplexDirichletThermalBoundary) boundary).getTemperaturesAtBorder(side);
+		}
+		for (int m = 1; m < n - 1; m++) {
+			int i = vertical ? inside : m, j = vertical ? m : inside;
+			int bi = vertical ? border : m, bj = vertical ? m : border;
+			if (!Float.isNaN(h.tb[i][j]))
+				continue;
+			double c = 0.5 * along[m] / size * (k[i][j] + k[bi][bj]);
+			if (boundary instanceof NeumannThermalBoundary) {
+				b[i][j] += c * flux * size / k[bi][bj];
+			} else {
+				float tBorder;
+				if (boundary instanceof DirichletThermalBoundary)
+					tBorder = ((DirichletThermalBoundary) boundary).getTemperatureAtBorder(side);
+				else if (temperatures != null)
+					tBorder = temperatures[m];
+				else
+					tBorder = t[bi][bj];
+				diag[i][j] += c;
+				b[i][j] += c * tBorder;
+			}
+		}
+		return !(boundary instanceof NeumannThermalBoundary);
+	}
+
+	// incomplete Cholesky with no fill-in, in the order of increasing i and then j, falling back on the diagonal for a pivot that is not positive
+	private void factorize() {
+		double d, cw, cn;
+		for (int i = 1; i < nx1; i++) {
+			for (int j = 1; j < ny1; j++) {
+				d = diag[i][j];
+				cw = cx[i - 1][j];
+				cn = cy[i][j - 1];
+				if (cw != 0)
+					d -= cw * cw / pre[i - 1][j];
+				if (cn != 0)
+					d -= cn * cn / pre[i][j - 1];
+				pre[i][j] = d > 0 ? d : diag[i][j];
+			}
+		}
+	}
+
+	// z = M^-1 y, with M = (P + L) P^-1 (P + L^T), where P holds the pivots and L the couplings to the west and north neighbors
+	private void precondition(double[][] y, double[][] z) {
+		for (int i = 1; i < nx1; i++) {
+			for (int j = 1; j < ny1; j++)
+				z[i][j] = (y[i][j] + cx[i - 1][j] * z[i - 1][j] + cy[i][j - 1] * z[i][j - 1]) / pre[i][j];
+		}
+		for (int i = nx1 - 1; i > 0; i--) {
+			for (int j = ny1 - 1; j > 0; j--)
+				z[i][j] += (cx[i][j] * z[i + 1][j] + cy[i][j] * z[i][j + 1]) / pre[i][j];
+		}
+	}
+
+	// y = A f over the interior
+	private void multiply(double[][] f, double[][] y) {
+		for (int i = 1; i < nx1; i++) {
+			for (int j = 1; j < ny1; j++)
+				y[i][j] = diag[i][j] * f[i][j] - cx[i - 1][j] * f[i - 1][j] - cx[i][j] * f[i + 1][j] - cy[i][j - 1] * f[i][j - 1] - cy[i][j] * f[i][j + 1];
+		}
+	}
+
+}
@@ -0,0 +1,80 @@
+/*
+ *   Copyright (C) 2009  The Concord Consortium, Inc.,
+ *   25 Love Lane, Concord, MA 01742
+ */
+
+package org.concord.energy2d.model;
+
+/**
+ * Decides the time step before each step from the Courant number of the flow and, optionally, the diffusion number. A policy cannot be changed, so it can be shared.
+ */
+public class TimeStepPolicy {
+
+	private final static float GROWTH = 1.2f;
+	private final static float HYSTERESIS = 0.8f;
+
+	private final float minTimeStep, maxTimeStep;
+	private final float courantNumber, diffusionNumber;
+
+	/**
+	 * @param courantNumber
+	 *            the largest Courant number, which should not be larger than one
+	 * @param diffusionNumber
+	 *            the largest diffusion number, or zero if the diffusion does not limit the time step
+	 */
+	public TimeStepPolicy(float minTimeStep, float maxTimeStep, float courantNumber, float diffusionNumber) {
+		if (minTimeStep <= 0 || maxTimeStep < minTimeStep)
+			throw new IllegalArgumentException("time steps must satisfy 0 < min <= max");
+		if (courantNumber <= 0)
+			throw new IllegalArgumentException("Courant number must be positive");
+		if (diffusionNumber < 0)
+			throw new IllegalArgumentException("diffusion number cannot be negative");
+		this.minTimeStep = minTimeStep;
+		this.maxTimeStep = maxTimeStep;
+		this.courantNumber = courantNumber;
+		this.diffusionNumber = diffusionNumber;
+	}
+
+	public float getMinTimeStep() {
+		return minTimeStep;
+	}
+
+	public float getMaxTimeStep() {
+		return maxTimeStep;
+	}
+
+	public float getCourantNumber() {
+		return courantNumber;
+	}
+
+	public float getDiffusionNumber() {
+		return diffusionNumber;
+	}
+
+	/**
+	 * @param timeStep
+	 *            the time step of the last step
+	 * @param maxSpeed
+	 *            the largest component of the velocity, or zero if there is no flow
+	 * @param maxDiffusivity
+	 *            the largest thermal diffusivity
+	 * @param cellSize
+	 *            the smaller of the two sides of a cell
+	 * @return the time step of the next step
+	 */
+	float getTimeStep(float timeStep, float maxSpeed, float maxDiffusivity, float cellSize) {
+		float limit = maxTimeStep;
+		if (maxSpeed > 0)
+			limit = Math.min(limit, courantNumber * cellSize / maxSpeed);
+		if (diffusionNumber > 0 && maxDiffusivity > 0)
+			limit = Math.min(limit, diffusionNumber * cellSize * cellSize / maxDiffusivity);
+		if (limit < minTimeStep)
+			limit = minTimeStep;
+		if (timeStep > limit || timeStep < minTimeStep)
+			return limit;
+		if (timeStep < HYSTERESIS * limit)
+			return Math.min(limit, GROWTH * timeStep);
+		return timeStep;
+	}
+
+}
@@ -0,0 +1,43 @@
+/*
+ *   Copyright (C) 2009  The Concord Consortium, Inc.,
+ *   25 Love Lane, Concord, MA 01742
+ */
+
+package org.concord.energy2d.model;
+
+/**
+ * Runs a fixed number of Gauss-Seidel sweeps over the columns of a grid together, each sweep two columns behind the last, with the same result as one sweep after another.
+ */
+class Wavefront {
+
+	// the columns between two consecutive sweeps
+	private final static int LAG = 2;
+
+	interface Column {
+
+		/** relax column i in the given sweep, counting from one */
+		void run(int i, int sweep);
+
+	}
+
+	/** run the sweeps over the columns [from, to) */
+	static void sweep(int from, int to, int sweeps, Column column) {
+		int last = to - 1 + LAG * (sweeps - 1);
+		int i;
+		for (int m = from; m <= last; m++) {
+			for (int s = 1; s <= sweeps; s++) {
+				i = m - LAG * (s - 1);
+				if (i < from)
+					break;
+				if (i < to)
+					column.run(i, s);
+			}
+		}
+	}
+
+	/** whether the relaxation with this policy takes a fixed number of sweeps, which is its maximum number of steps, so that nothing is measured between them and they can run as a wavefront */
+	static boolean isFixed(ConvergencePolicy policy) {
+		return policy.getTolerance() == 0 || policy.getMinSteps() == policy.getMaxSteps();
+	}
+
+}
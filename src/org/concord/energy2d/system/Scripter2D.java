@@ -25,6 +25,7 @@ import javax.swing.ImageIcon;
 import org.concord.energy2d.event.ScriptEvent;
 import org.concord.energy2d.event.ScriptListener;
 import org.concord.energy2d.model.Boundary;
+import org.concord.energy2d.model.ConvergencePolicy;
 import org.concord.energy2d.model.DirichletThermalBoundary;
 import org.concord.energy2d.model.MassBoundary;
 import org.concord.energy2d.model.SimpleMassBoundary;
@@ -32,6 +33,7 @@ import org.concord.energy2d.model.ThermalBoundary;
 import org.concord.energy2d.model.NeumannThermalBoundary;
 import org.concord.energy2d.model.Part;
 import org.concord.energy2d.model.Thermometer;
+import org.concord.energy2d.model.TimeStepPolicy;
 import org.concord.energy2d.util.ColorFill;
 import org.concord.energy2d.util.MiscUtil;
 import org.concord.energy2d.util.Scripter;
@@ -46,6 +48,7 @@ import org.concord.energy2d.view.View2D;
 class Scripter2D extends Scripter {
 
 	private final static Pattern RUNSTEPS = compile("(^(?i)runsteps\\b){1}");
+	private final static Pattern STEADY = compile("(^(?i)steady\\b){1}");
 	private final static Pattern PART = compile("(^(?i)part\\b){1}");
 	private final static Pattern THERMOMETER = compile("(^(?i)thermometer\\b){1}");
 	private final static Pattern BOUNDARY = compile("(^(?i)boundary\\b){1}");
@@ -97,6 +100,34 @@ class Scripter2D extends Scripter {
 		out(ScriptEvent.FAILED, "Error in \'" + command + "\':" + e.getMessage());
 	}
 
+	// the arguments of set *_convergence: tolerance, minimum steps and maximum steps
+	private ConvergencePolicy parseConvergence(String command, String[] t) {
+		if (t.length < 4) {
+			showError(command, "Expect a tolerance, a minimum and a maximum number of steps.");
+			return null;
+		}
+		try {
+			return new ConvergencePolicy(Float.parseFloat(t[1]), Integer.parseInt(t[2]), Integer.parseInt(t[3]));
+		} catch (IllegalArgumentException e) {
+			showException(command, e);
+			return null;
+		}
+	}
+
+	// the arguments of set adaptive_timestep: the minimum and maximum time steps, the Courant number and optionally the diffusion number
+	private TimeStepPolicy parseTimeStepPolicy(String command, String[] t) {
+		if (t.length < 4) {
+			showError(command, "Expect a minimum and a maximum time step, a Courant number and optionally a diffusion number.");
+			return null;
+		}
+		try {
+			return new TimeStepPolicy(Float.parseFloat(t[1]), Float.parseFloat(t[2]), Float.parseFloat(t[3]), t.length > 4 ? Float.parseFloat(t[4]) : 0);
+		} catch (IllegalArgumentException e) {
+			showException(command, e);
+			return null;
+		}
+	}
+
 	private void showError(String command, String message) {
 		out(ScriptEvent.FAILED, "Error in \'" + command + "\':" + message);
 	}
@@ -169,6 +200,12 @@ class Scripter2D extends Scripter {
 			return;
 		}
 
+		matcher = STEADY.matcher(ci);
+		if (matcher.find()) {
+			s2d.solveSteadyState();
+			return;
+		}
+
 		matcher = STOP.matcher(ci);
 		if (matcher.find()) {
 			if (s2d.clickStop != null) {
@@ -523,7 +560,14 @@ class Scripter2D extends Scripter {
 					s2d.model.setSolarRayCount(rayCount);
 					arrayUpdateRequested = true;
 				} else if (t[0].equalsIgnoreCase("convective")) {
-					s2d.model.setConvective("true".equalsIgnoreCase(t[1]));
+					try {
+						s2d.model.setConvective("true".equalsIgnoreCase(t[1]));
+					} catch (IllegalStateException e) {
+						showException(ci, e);
+						return;
+					}
+				} else if (t[0].equalsIgnoreCase("fractional_coverage")) {
+					s2d.model.setFractionalCoverage("true".equalsIgnoreCase(t[1]));
 				} else if (t[0].equalsIgnoreCase("thermal_buoyancy")) {
 					float thermalBuoyancy = 0;
 					try {
@@ -542,6 +586,67 @@ class Scripter2D extends Scripter {
 						return;
 					}
 					s2d.model.setBuoyancyApproximation((byte) buoyancyApproximation);
+				} else if (t[0].equalsIgnoreCase("heat_solver")) {
+					try {
+						s2d.model.setHeatSolverType(Byte.parseByte(t[1]));
+					} catch (IllegalArgumentException e) {
+						showException(ci, e);
+						return;
+					}
+				} else if (t[0].equalsIgnoreCase("fluid_solver")) {
+					try {
+						s2d.model.setFluidSolverType(Byte.parseByte(t[1]));
+					} catch (IllegalArgumentException e) {
+						showException(ci, e);
+						return;
+					}
+				} else if (t[0].equalsIgnoreCase("temperature_advection")) {
+					int scheme = 0;
+					try {
+						scheme = Integer.parseInt(t[1]);
+					} catch (NumberFormatException e) {
+						showException(ci, e);
+						return;
+					}
+					s2d.model.setTemperatureAdvection((byte) scheme);
+				} else if (t[0].equalsIgnoreCase("velocity_advection")) {
+					int scheme = 0;
+					try {
+						scheme = Integer.parseInt(t[1]);
+					} catch (NumberFormatException e) {
+						showException(ci, e);
+						return;
+					}
+					s2d.model.setVelocityAdvection((byte) scheme);
+				} else if (t[0].equalsIgnoreCase("projection_tolerance")) {
+					float projectionTolerance = 0;
+					try {
+						projectionTolerance = Float.parseFloat(t[1]);
+					} catch (NumberFormatException e) {
+						showException(ci, e);
+						return;
+					}
+					s2d.model.setProjectionTolerance(projectionTolerance);
+				} else if (t[0].equalsIgnoreCase("heat_convergence")) {
+					ConvergencePolicy c = parseConvergence(ci, t);
+					if (c == null)
+						return;
+					s2d.model.setHeatConvergence(c);
+				} else if (t[0].equalsIgnoreCase("viscous_convergence")) {
+					ConvergencePolicy c = parseConvergence(ci, t);
+					if (c == null)
+						return;
+					s2d.model.setViscousConvergence(c);
+				} else if (t[0].equalsIgnoreCase("projection_convergence")) {
+					ConvergencePolicy c = parseConvergence(ci, t);
+					if (c == null)
+						return;
+					s2d.model.setProjectionConvergence(c);
+				} else if (t[0].equalsIgnoreCase("stream_convergence")) {
+					ConvergencePolicy c = parseConvergence(ci, t);
+					if (c == null)
+						return;
+					s2d.model.setStreamFunctionConvergence(c);
 				} else if (t[0].equalsIgnoreCase("velocity")) {
 					s2d.view.setVelocityOn("true".equalsIgnoreCase(t[1]));
 					s2d.view.repaint();
@@ -683,6 +788,15 @@ class Scripter2D extends Scripter {
 						return;
 					}
 					s2d.model.setTimeStep(timestep);
+				} else if (t[0].equalsIgnoreCase("adaptive_timestep")) {
+					if (t.length > 1 && "off".equalsIgnoreCase(t[1])) {
+						s2d.model.setTimeStepPolicy(null);
+					} else {
+						TimeStepPolicy p = parseTimeStepPolicy(ci, t);
+						if (p == null)
+							return;
+						s2d.model.setTimeStepPolicy(p);
+					}
 				} else if (t[0].equalsIgnoreCase("viewupdate")) {
 					int viewUpdateInterval = 0;
 					try {
@@ -734,6 +848,50 @@ class Scripter2D extends Scripter {
 					s2d.view.setArea(0, s2d.model.getLx(), 0, height);
 					temperatureInitializationRequested = true;
 					arrayUpdateRequested = true;
+				} else if (t[0].equalsIgnoreCase("grid_resolution")) {
+					int nx = 0, ny = 0;
+					try {
+						nx = Integer.parseInt(t[1]);
+						ny = t.length > 2 ? Integer.parseInt(t[2]) : nx;
+					} catch (NumberFormatException e) {
+						showException(ci, e);
+						return;
+					}
+					try {
+						s2d.model.setGridResolution(nx, ny);
+					} catch (IllegalArgumentException e) {
+						showException(ci, e);
+						return;
+					}
+					arrayUpdateRequested = true;
+				} else if (t[0].equalsIgnoreCase("grid_spacing")) {
+					// set grid_spacing x|y uniform, or set grid_spacing x|y followed by the relative width of each column or row
+					boolean x = "x".equalsIgnoreCase(t[1]);
+					if (!x && !"y".equalsIgnoreCase(t[1])) {
+						showError(ci, "Expect x or y.");
+						return;
+					}
+					float[] w = null;
+					if (t.length != 3 || !"uniform".equalsIgnoreCase(t[2])) {
+						w = new float[t.length - 2];
+						try {
+							for (int k = 0; k < w.length; k++)
+								w[k] = Float.parseFloat(t[k + 2]);
+						} catch (NumberFormatException e) {
+							showException(ci, e);
+							return;
+						}
+					}
+					try {
+						if (x)
+							s2d.model.setGridSpacing(w, s2d.model.getRowHeights());
+						else
+							s2d.model.setGridSpacing(s2d.model.getColumnWidths(), w);
+					} catch (IllegalArgumentException e) {
+						showException(ci, e);
+						return;
+					}
+					arrayUpdateRequested = true;
 				} else if (t[0].equalsIgnoreCase("z_heat_diffusivity")) {
 					float zHeatDiffusivity = 0;
 					try {
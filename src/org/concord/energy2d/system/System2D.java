@@ -205,6 +205,15 @@ public class System2D extends JApplet implements MwService, VisualizationListene
 		});
 	}
 
+	// queued on the simulation thread, so it waits for a running model to stop
+	public void solveSteadyState() {
+		executeInThreadService(new Runnable() {
+			public void run() {
+				model.solveSteadyState();
+			}
+		});
+	}
+
 	public void stop() {
 		model.stop();
 		view.toggleRun();
@@ -7,6 +7,7 @@ import java.util.List;
 
 import org.concord.energy2d.model.Boundary;
 import org.concord.energy2d.model.Constants;
+import org.concord.energy2d.model.ConvergencePolicy;
 import org.concord.energy2d.model.DirichletThermalBoundary;
 import org.concord.energy2d.model.MassBoundary;
 import org.concord.energy2d.model.SimpleMassBoundary;
@@ -15,6 +16,7 @@ import org.concord.energy2d.model.Model2D;
 import org.concord.energy2d.model.NeumannThermalBoundary;
 import org.concord.energy2d.model.Part;
 import org.concord.energy2d.model.Thermometer;
+import org.concord.energy2d.model.TimeStepPolicy;
 import org.concord.energy2d.util.ColorFill;
 import org.concord.energy2d.util.Scripter;
 import org.concord.energy2d.util.Texture;
@@ -36,7 +38,11 @@ class XmlDecoder extends DefaultHandler {
 	// model properties
 	private float modelWidth = 10;
 	private float modelHeight = 10;
+	private int gridNx = 100;
+	private int gridNy = 100;
+	private float[] columnWidths, rowHeights;
 	private float timeStep = 1;
+	private TimeStepPolicy timeStepPolicy;
 	private int measurementInterval = 500;
 	private int viewUpdateInterval = 100;
 	private float stopTime = -1;
@@ -55,6 +61,16 @@ class XmlDecoder extends DefaultHandler {
 	private float backgroundTemperature;
 	private float thermalBuoyancy;
 	private byte buoyancyApproximation = Model2D.BUOYANCY_AVERAGE_COLUMN;
+	private byte temperatureAdvection = Model2D.ADVECTION_MACCORMACK;
+	private byte velocityAdvection = Model2D.ADVECTION_MACCORMACK;
+	private float projectionTolerance;
+	private ConvergencePolicy heatConvergence = ConvergencePolicy.DEFAULT;
+	private ConvergencePolicy viscousConvergence = ConvergencePolicy.DEFAULT;
+	private ConvergencePolicy projectionConvergence = ConvergencePolicy.DEFAULT;
+	private ConvergencePolicy streamConvergence = ConvergencePolicy.STREAM_FUNCTION;
+	private boolean fractionalCoverage;
+	private byte heatSolverType = Model2D.HEAT_SOLVER_GAUSS_SEIDEL;
+	private byte fluidSolverType = Model2D.FLUID_SOLVER_GAUSS_SEIDEL;
 
 	// view properties
 	private boolean ruler;
@@ -123,8 +139,18 @@ class XmlDecoder extends DefaultHandler {
 
 		box.model.setLx(modelWidth);
 		box.model.setLy(modelHeight);
+		box.model.setGridResolution(gridNx, gridNy);
+		// convection needs a uniform grid, so it is turned off before the grid is stretched and turned on after
+		if (convective && (columnWidths != null || rowHeights != null)) {
+			System.err.println("The grid spacing of a convective model is ignored.");
+			columnWidths = rowHeights = null;
+		}
+		if (!convective)
+			box.model.setConvective(false);
+		box.model.setGridSpacing(columnWidths, rowHeights);
 		box.view.setArea(0, modelWidth, 0, modelHeight);
 		box.model.setTimeStep(timeStep);
+		box.model.setTimeStepPolicy(timeStepPolicy);
 		box.model.setMeasurementInterval(measurementInterval);
 		box.model.setViewUpdateInterval(viewUpdateInterval);
 		box.model.setStopTime(stopTime);
@@ -143,6 +169,16 @@ class XmlDecoder extends DefaultHandler {
 		box.model.setBackgroundViscosity(backgroundViscosity);
 		box.model.setThermalBuoyancy(thermalBuoyancy);
 		box.model.setBuoyancyApproximation(buoyancyApproximation);
+		box.model.setTemperatureAdvection(temperatureAdvection);
+		box.model.setVelocityAdvection(velocityAdvection);
+		box.model.setProjectionTolerance(projectionTolerance);
+		box.model.setHeatConvergence(heatConvergence);
+		box.model.setViscousConvergence(viscousConvergence);
+		box.model.setProjectionConvergence(projectionConvergence);
+		box.model.setStreamFunctionConvergence(streamConvergence);
+		box.model.setFractionalCoverage(fractionalCoverage);
+		box.model.setHeatSolverType(heatSolverType);
+		box.model.setFluidSolverType(fluidSolverType);
 
 		box.view.setRulerOn(ruler);
 		box.view.setGridOn(grid);
@@ -370,6 +406,16 @@ class XmlDecoder extends DefaultHandler {
 				b.setFlowTypeAtBorder(Boundary.LOWER, lower);
 				b.setFlowTypeAtBorder(Boundary.LEFT, left);
 			}
+		} else if (qName == "adaptive_timestep") {
+			timeStepPolicy = parseTimeStepPolicy(attrib);
+		} else if (qName == "heat_convergence") {
+			heatConvergence = parseConvergence(attrib, ConvergencePolicy.DEFAULT);
+		} else if (qName == "viscous_convergence") {
+			viscousConvergence = parseConvergence(attrib, ConvergencePolicy.DEFAULT);
+		} else if (qName == "projection_convergence") {
+			projectionConvergence = parseConvergence(attrib, ConvergencePolicy.DEFAULT);
+		} else if (qName == "stream_convergence") {
+			streamConvergence = parseConvergence(attrib, ConvergencePolicy.STREAM_FUNCTION);
 		} else if (qName == "thermometer") {
 			if (attrib != null) {
 				float x = Float.NaN, y = Float.NaN;
@@ -433,6 +479,16 @@ class XmlDecoder extends DefaultHandler {
 			modelWidth = Float.parseFloat(str);
 		} else if (qName == "model_height") {
 			modelHeight = Float.parseFloat(str);
+		} else if (qName == "grid_nx") {
+			gridNx = Integer.parseInt(str);
+		} else if (qName == "grid_ny") {
+			gridNy = Integer.parseInt(str);
+		} else if (qName == "column_widths") {
+			String[] s = str.split(",");
+			columnWidths = Scripter.parseArray(s.length, s);
+		} else if (qName == "row_heights") {
+			String[] s = str.split(",");
+			rowHeights = Scripter.parseArray(s.length, s);
 		} else if (qName == "timestep") {
 			timeStep = Float.parseFloat(str);
 		} else if (qName == "measurement_interval") {
@@ -471,6 +527,18 @@ class XmlDecoder extends DefaultHandler {
 			thermalBuoyancy = Float.parseFloat(str);
 		} else if (qName == "buoyancy_approximation") {
 			buoyancyApproximation = Byte.parseByte(str);
+		} else if (qName == "temperature_advection") {
+			temperatureAdvection = Byte.parseByte(str);
+		} else if (qName == "velocity_advection") {
+			velocityAdvection = Byte.parseByte(str);
+		} else if (qName == "projection_tolerance") {
+			projectionTolerance = Float.parseFloat(str);
+		} else if (qName == "fractional_coverage") {
+			fractionalCoverage = Boolean.parseBoolean(str);
+		} else if (qName == "heat_solver") {
+			heatSolverType = Byte.parseByte(str);
+		} else if (qName == "fluid_solver") {
+			fluidSolverType = Byte.parseByte(str);
 		} else if (qName == "minimum_temperature") {
 			minimumTemperature = Float.parseFloat(str);
 		} else if (qName == "maximum_temperature") {
@@ -629,12 +697,49 @@ class XmlDecoder extends DefaultHandler {
 		partLabel = null;
 	}
 
+	// a missing attribute is taken from the default policy, and an invalid policy is replaced by it
+	private static ConvergencePolicy parseConvergence(Attributes attrib, ConvergencePolicy c) {
+		try {
+			return new ConvergencePolicy(parseFloat(attrib, "tolerance", c.getTolerance()), parseInt(attrib, "min", c.getMinSteps()), parseInt(attrib, "max", c.getMaxSteps()));
+		} catch (IllegalArgumentException e) {
+			e.printStackTrace();
+			return c;
+		}
+	}
+
+	// a missing time step is taken from the fixed one, a missing Courant number is one and a missing diffusion number is zero, and an invalid policy keeps the time step fixed
+	private TimeStepPolicy parseTimeStepPolicy(Attributes attrib) {
+		try {
+			float max = parseFloat(attrib, "max", timeStep);
+			float min = parseFloat(attrib, "min", Math.min(timeStep, max));
+			return new TimeStepPolicy(min, max, parseFloat(attrib, "courant", 1), parseFloat(attrib, "diffusion", 0));
+		} catch (IllegalArgumentException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private static float parseFloat(Attributes attrib, String name, float x) {
+		String s = attrib.getValue(name);
+		return s == null ? x : Float.parseFloat(s);
+	}
+
+	private static int parseInt(Attributes attrib, String name, int x) {
+		String s = attrib.getValue(name);
+		return s == null ? x : Integer.parseInt(s);
+	}
+
 	private void resetGlobalVariables() {
 
 		// model properties
 		modelWidth = 10;
 		modelHeight = 10;
+		gridNx = 100;
+		gridNy = 100;
+		columnWidths = null;
+		rowHeights = null;
 		timeStep = 1;
+		timeStepPolicy = null;
 		measurementInterval = 100;
 		viewUpdateInterval = 20;
 		stopTime = -1;
@@ -653,6 +758,16 @@ class XmlDecoder extends DefaultHandler {
 		backgroundTemperature = 0;
 		thermalBuoyancy = 0;
 		buoyancyApproximation = Model2D.BUOYANCY_AVERAGE_COLUMN;
+		temperatureAdvection = Model2D.ADVECTION_MACCORMACK;
+		velocityAdvection = Model2D.ADVECTION_MACCORMACK;
+		projectionTolerance = 0;
+		heatConvergence = ConvergencePolicy.DEFAULT;
+		viscousConvergence = ConvergencePolicy.DEFAULT;
+		projectionConvergence = ConvergencePolicy.DEFAULT;
+		streamConvergence = ConvergencePolicy.STREAM_FUNCTION;
+		fractionalCoverage = false;
+		heatSolverType = Model2D.HEAT_SOLVER_GAUSS_SEIDEL;
+		fluidSolverType = Model2D.FLUID_SOLVER_GAUSS_SEIDEL;
 
 		// view properties
 		ruler = false;
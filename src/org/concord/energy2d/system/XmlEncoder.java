@@ -4,8 +4,11 @@ import java.awt.geom.Rectangle2D;
 import java.util.List;
 
 import org.concord.energy2d.model.Constants;
+import org.concord.energy2d.model.ConvergencePolicy;
+import org.concord.energy2d.model.Model2D;
 import org.concord.energy2d.model.Part;
 import org.concord.energy2d.model.Thermometer;
+import org.concord.energy2d.model.TimeStepPolicy;
 import org.concord.energy2d.view.View2D;
 
 /**
@@ -36,9 +39,25 @@ class XmlEncoder {
 		if (box.model.getLy() != 10) {
 			sb.append("<model_height>" + box.model.getLy() + "</model_height>\n");
 		}
+		if (box.model.getNx() != 100) {
+			sb.append("<grid_nx>" + box.model.getNx() + "</grid_nx>\n");
+		}
+		if (box.model.getNy() != 100) {
+			sb.append("<grid_ny>" + box.model.getNy() + "</grid_ny>\n");
+		}
+		if (box.model.getColumnWidths() != null) {
+			sb.append("<column_widths>" + toList(box.model.getColumnWidths()) + "</column_widths>\n");
+		}
+		if (box.model.getRowHeights() != null) {
+			sb.append("<row_heights>" + toList(box.model.getRowHeights()) + "</row_heights>\n");
+		}
 		if (box.model.getTimeStep() != 1) {
 			sb.append("<timestep>" + box.model.getTimeStep() + "</timestep>\n");
 		}
+		TimeStepPolicy policy = box.model.getTimeStepPolicy();
+		if (policy != null) {
+			sb.append("<adaptive_timestep min=\"" + policy.getMinTimeStep() + "\" max=\"" + policy.getMaxTimeStep() + "\" courant=\"" + policy.getCourantNumber() + "\" diffusion=\"" + policy.getDiffusionNumber() + "\"/>\n");
+		}
 		if (box.model.getMeasurementInterval() != 500) {
 			sb.append("<measurement_interval>" + box.model.getMeasurementInterval() + "</measurement_interval>\n");
 		}
@@ -80,6 +99,28 @@ class XmlEncoder {
 		}
 		sb.append("<thermal_buoyancy>" + box.model.getThermalBuoyancy() + "</thermal_buoyancy>\n");
 		sb.append("<buoyancy_approximation>" + box.model.getBuoyancyApproximation() + "</buoyancy_approximation>\n");
+		if (box.model.getTemperatureAdvection() != Model2D.ADVECTION_MACCORMACK) {
+			sb.append("<temperature_advection>" + box.model.getTemperatureAdvection() + "</temperature_advection>\n");
+		}
+		if (box.model.getVelocityAdvection() != Model2D.ADVECTION_MACCORMACK) {
+			sb.append("<velocity_advection>" + box.model.getVelocityAdvection() + "</velocity_advection>\n");
+		}
+		if (box.model.getProjectionTolerance() != 0) {
+			sb.append("<projection_tolerance>" + box.model.getProjectionTolerance() + "</projection_tolerance>\n");
+		}
+		appendConvergence(sb, "heat_convergence", box.model.getHeatConvergence(), ConvergencePolicy.DEFAULT);
+		appendConvergence(sb, "viscous_convergence", box.model.getViscousConvergence(), ConvergencePolicy.DEFAULT);
+		appendConvergence(sb, "projection_convergence", box.model.getProjectionConvergence(), ConvergencePolicy.DEFAULT);
+		appendConvergence(sb, "stream_convergence", box.model.getStreamFunctionConvergence(), ConvergencePolicy.STREAM_FUNCTION);
+		if (box.model.isFractionalCoverage()) {
+			sb.append("<fractional_coverage>true</fractional_coverage>\n");
+		}
+		if (box.model.getHeatSolverType() != Model2D.HEAT_SOLVER_GAUSS_SEIDEL) {
+			sb.append("<heat_solver>" + box.model.getHeatSolverType() + "</heat_solver>\n");
+		}
+		if (box.model.getFluidSolverType() != Model2D.FLUID_SOLVER_GAUSS_SEIDEL) {
+			sb.append("<fluid_solver>" + box.model.getFluidSolverType() + "</fluid_solver>\n");
+		}
 
 		sb.append("<boundary>\n");
 		sb.append(box.model.getThermalBoundary().toXml());
@@ -175,4 +216,20 @@ class XmlEncoder {
 		return sb.toString();
 
 	}
+
+	private static void appendConvergence(StringBuffer sb, String name, ConvergencePolicy c, ConvergencePolicy defaultPolicy) {
+		if (!c.equals(defaultPolicy))
+			sb.append("<" + name + " tolerance=\"" + c.getTolerance() + "\" min=\"" + c.getMinSteps() + "\" max=\"" + c.getMaxSteps() + "\"/>\n");
+	}
+
+	private static String toList(float[] a) {
+		StringBuffer sb = new StringBuffer();
+		for (int i = 0; i < a.length; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(a[i]);
+		}
+		return sb.toString();
+	}
+
 }
@@ -30,6 +30,11 @@ class GridRenderer {
 		this.ny = ny;
 	}
 
+	void setResolution(int nx, int ny) {
+		this.nx = nx;
+		this.ny = ny;
+	}
+
 	void setGridSize(int gridSize) {
 		this.gridSize = gridSize;
 	}
@@ -226,7 +226,12 @@ class ModelDialog extends JDialog {
 				}
 
 				model.setSunny(sunnyCheckBox.isSelected());
-				model.setConvective(convectiveCheckBox.isSelected());
+				try {
+					model.setConvective(convectiveCheckBox.isSelected());
+				} catch (IllegalStateException ex) {
+					JOptionPane.showMessageDialog(ModelDialog.this, ex.getMessage(), "Convection error", JOptionPane.ERROR_MESSAGE);
+					convectiveCheckBox.setSelected(false);
+				}
 				model.setBuoyancyApproximation((byte) buoyancyApproximationComboBox.getSelectedIndex());
 
 				model.refreshPowerArray();
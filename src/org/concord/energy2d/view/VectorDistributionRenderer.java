@@ -22,15 +22,11 @@ class VectorDistributionRenderer {
 	private final static float SIN = (float) Math.sin(Math.toRadians(30));
 
 	private Stroke stroke = new BasicStroke(1);
-	private int nx;
-	private int ny;
 	private int spacing = 4;
 	private float scale = 100;
 	private View2D view;
 
-	VectorDistributionRenderer(View2D view, int nx, int ny) {
-		this.nx = nx;
-		this.ny = ny;
+	VectorDistributionRenderer(View2D view) {
 		this.view = view;
 	}
 
@@ -70,6 +66,8 @@ class VectorDistributionRenderer {
 
 		int w = c.getWidth();
 		int h = c.getHeight();
+		int nx = u.length;
+		int ny = u[0].length;
 		float dx = (float) w / (float) nx;
 		float dy = (float) h / (float) ny;
 
@@ -102,6 +100,8 @@ class VectorDistributionRenderer {
 
 		int w = c.getWidth();
 		int h = c.getHeight();
+		int nx = t.length;
+		int ny = t[0].length;
 		float dx = (float) w / (float) nx;
 		float dy = (float) h / (float) ny;
 
@@ -8,6 +8,7 @@ package org.concord.energy2d.view;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Cursor;
+import java.awt.Dimension;
 import java.awt.EventQueue;
 import java.awt.Font;
 import java.awt.FontMetrics;
@@ -454,8 +455,8 @@ public class View2D extends JPanel implements PropertyChangeListener {
 
 	public void setModel(Model2D model) {
 		this.model = model;
-		nx = model.getTemperature().length;
-		ny = model.getTemperature()[0].length;
+		nx = model.getNx();
+		ny = model.getNy();
 	}
 
 	public void reset() {
@@ -567,14 +568,14 @@ public class View2D extends JPanel implements PropertyChangeListener {
 
 	public void setVectorStroke(Stroke s) {
 		if (vectorFieldRenderer == null)
-			vectorFieldRenderer = new VectorDistributionRenderer(this, nx, ny);
+			vectorFieldRenderer = new VectorDistributionRenderer(this);
 		vectorFieldRenderer.setStroke(s);
 	}
 
 	public void setVelocityOn(boolean b) {
 		showVelocity = b;
 		if (b && vectorFieldRenderer == null)
-			vectorFieldRenderer = new VectorDistributionRenderer(this, nx, ny);
+			vectorFieldRenderer = new VectorDistributionRenderer(this);
 	}
 
 	public boolean isVelocityOn() {
@@ -584,7 +585,7 @@ public class View2D extends JPanel implements PropertyChangeListener {
 	public void setHeatFluxArrowsOn(boolean b) {
 		showHeatFluxArrows = b;
 		if (b && vectorFieldRenderer == null)
-			vectorFieldRenderer = new VectorDistributionRenderer(this, nx, ny);
+			vectorFieldRenderer = new VectorDistributionRenderer(this);
 	}
 
 	public boolean isHeatFluxArrowsOn() {
@@ -603,7 +604,7 @@ public class View2D extends JPanel implements PropertyChangeListener {
 
 	public void setVectorFieldSpacing(int spacing) {
 		if (vectorFieldRenderer == null)
-			vectorFieldRenderer = new VectorDistributionRenderer(this, nx, ny);
+			vectorFieldRenderer = new VectorDistributionRenderer(this);
 		vectorFieldRenderer.setSpacing(spacing);
 	}
 
@@ -1056,8 +1057,8 @@ public class View2D extends JPanel implements PropertyChangeListener {
 					x = (int) (rx * getWidth() - lx * 0.5f);
 					y = (int) (ry * getHeight() - ly * 0.5f);
 					s.paintIcon(this, g, x, y);
-					ix = Math.round(nx * rx);
-					iy = Math.round(ny * ry);
+					ix = Math.min(nx - 1, Math.round(nx * rx));
+					iy = Math.min(ny - 1, Math.round(ny * ry));
 					temp = model.getTemperature()[ix][iy];
 					if (!Float.isNaN(temp)) {
 						g.setColor(getContrastColor(x, y));
@@ -1311,7 +1312,7 @@ public class View2D extends JPanel implements PropertyChangeListener {
 		float[][] y_vel = model.getYVelocity();
 		int nx = x_vel.length;
 		int ny = x_vel[0].length;
-		if (magnitude == null)
+		if (magnitude == null || magnitude.length != nx || magnitude[0].length != ny)
 			magnitude = new float[nx][ny];
 		for (int i = 0; i < nx; i++) {
 			for (int j = 0; j < ny; j++) {
@@ -1328,7 +1329,7 @@ public class View2D extends JPanel implements PropertyChangeListener {
 		float[][] temperature = model.getTemperature();
 		int nx = temperature.length;
 		int ny = temperature[0].length;
-		if (distribution == null)
+		if (distribution == null || distribution.length != nx || distribution[0].length != ny)
 			distribution = new float[nx][ny];
 		float factor = 1f / model.getMaximumHeatCapacity();
 		for (int i = 0; i < nx; i++) {
@@ -2065,6 +2066,13 @@ public class View2D extends JPanel implements PropertyChangeListener {
 			float timeStep = (Float) e.getNewValue();
 			graphRenderer.setXmax(7200 * timeStep);
 			photonLength = Math.max(5, timeStep * 0.1f);
+		} else if (e.getPropertyName().equals("Grid resolution")) {
+			Dimension d = (Dimension) e.getNewValue();
+			nx = d.width;
+			ny = d.height;
+			if (gridRenderer != null)
+				gridRenderer.setResolution(nx, ny);
+			repaint();
 		}
 	}
 